@@ -1,19 +1,90 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 public class MarioGameEnhanced extends Application {
     private static final int GAME_WIDTH = 800;
@@ -22,15 +93,45 @@ public class MarioGameEnhanced extends Application {
     private static final int TILE_SIZE = 32;
     private static final double GAME_TIME_LIMIT = 60.0;
     private static final double LEVEL_END_X = 1500; // Level completion point
+    private static final double PLAYER_BROADPHASE_SKIN = 16;
+    private static final double CAMERA_FOLLOW_PER_FRAME = 0.1;
+    private static final int LEVELS_PER_WORLD = 4;
+    private static final double AUTOSAVE_INTERVAL = 5.0; // seconds of play between autosaves
+    private static final long LEVEL_RELOAD_DEBOUNCE_MILLIS = 150;
+    private static final double SHELL_SPEED = 5; // px per frame once kicked
+    private static final int PIRANHA_HEIGHT = 32; // px, risen one a frame
+    private static final int PIRANHA_HIDDEN_FRAMES = 90, PIRANHA_UP_FRAMES = 90;
+    private static final int PIRANHA_CYCLE = PIRANHA_HIDDEN_FRAMES + PIRANHA_HEIGHT + PIRANHA_UP_FRAMES + PIRANHA_HEIGHT;
+    private static final double PIRANHA_CLEARANCE = 24; // px; plants stay down while the player is this close
+    private static List<ParallaxLayer> parallaxLayers;
+
+    // Shared by every game instance; levels are small, so one thread keeps preloads from competing
+    private static final ExecutorService LEVEL_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "level-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Saves are encoded on the game thread and written here, so file I/O never stalls a frame
+    private static final ExecutorService SAVE_WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "save-writer");
+        t.setDaemon(true);
+        return t;
+    });
 
     private Canvas canvas;
-    private GraphicsContext gc;
+    private Surface screen;
+    private ScaledDisplay display; // null unless drawing through the integer-scaled framebuffer
+    private EngineMetrics metrics; // null unless the metrics endpoint is enabled
+    private AudioMixer audio; // null when silent, as in every headless game
+    private boolean musicKeyPressed = false;
     private Set<KeyCode> pressedKeys = new HashSet<>();
     private Player player;
     private List<Platform> platforms;
-    private List<Enemy> enemies;
-    private List<Coin> coins;
-    private List<PowerUp> powerUps;
+    private TerrainIndex terrain;
+    private EntityStore enemies;
+    private EntityStore coins;
+    private EntityStore powerUps;
     private List<QuestionBlock> questionBlocks;
     private List<Pipe> pipes;
     private List<Particle> particles;
@@ -38,109 +139,644 @@ public class MarioGameEnhanced extends Application {
     private double cameraX = 0;
     private int score = 0;
     private int lives = 3;
+    private int world = 1;
     private int level = 1;
     private boolean gameOver = false;
     private boolean levelComplete = false;
     private long lastTime = 0;
     private boolean fireKeyPressed = false;
     private double gameTimer = GAME_TIME_LIMIT;
+    private double levelEndX = LEVEL_END_X;
+    private double animationTime = 0; // shared clock every animation is sampled from
+    private LevelDefinition levelDefinition; // loaded by the first restart, not per instance
+    private PreparedLevel currentLevel;
+    private CompletableFuture<PreparedLevel> nextLevel; // completes with null after the last level
+    private boolean preloadLevels = false; // only the window preloads; headless games load on arrival
+    private volatile Path levelFile = levelPath(world, level);
+    private final AtomicReference<LevelEdit> pendingLevel = new AtomicReference<>();
+    private final AtomicBoolean nextLevelStale = new AtomicBoolean();
+    private final QualityGovernor quality = new QualityGovernor(Integer.getInteger("mario.fps", 60));
+    private long[] hitMask = new long[1];
+    private Leaderboard leaderboard;
+    private List<Leaderboard.Entry> highScores = new ArrayList<>();
+    private boolean scoreSubmitted = false;
+    private final CollisionWorld collisionWorld = new CollisionWorld(TILE_SIZE * 2);
+    private final ShellSweep shellSweep = new ShellSweep();
+    private final FixedPhysics fixedPhysics; // null unless running the 16.16 physics mode
+    private Telemetry telemetry; // null unless recording heatmaps
+    private Heatmap heatmap; // the current level's map in telemetry
+    private CompletableFuture<Heatmap> heatmapHistory; // the current level's saved map, loaded for the overlay
+    private int heatmapOverlay = -1; // Heatmap event shown over the level, or -1
+    private boolean heatmapKeyPressed = false;
+    private Path saveFile; // null unless saving is enabled
+    private double autosaveTimer = AUTOSAVE_INTERVAL;
+    private ByteBuffer saveBuffer = ByteBuffer.allocateDirect(1 << 16); // reused; only one save is in flight
+    private final AtomicBoolean saveInFlight = new AtomicBoolean();
+    private boolean saveKeyPressed = false;
+    private boolean loadKeyPressed = false;
+
+    // Input bits shared by the keyboard and the headless environments
+    static final int INPUT_LEFT = 1;
+    static final int INPUT_RIGHT = 1 << 1;
+    static final int INPUT_JUMP = 1 << 2;
+    static final int INPUT_RUN = 1 << 3;
+    static final int INPUT_FIRE = 1 << 4;
+
+    public MarioGameEnhanced() {
+        this("fixed".equalsIgnoreCase(System.getProperty("mario.physics")));
+    }
+
+    MarioGameEnhanced(boolean fixedPoint) {
+        fixedPhysics = fixedPoint ? new FixedPhysics() : null;
+        registerCollisionHandlers();
+    }
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            switch (args[0]) {
+                case "--bench-collision":
+                    CollisionKernel.benchmark();
+                    return;
+                case "--export-frames":
+                    requireArgs(args, 3, "--export-frames <dir|file> <frames> [png|raw] [inputs]");
+                    exportFrames(args);
+                    return;
+                case "--diff-frames":
+                    requireArgs(args, 3, "--diff-frames <expected-dir> <actual-dir>");
+                    System.exit(diffFrames(Paths.get(args[1]), Paths.get(args[2])) ? 0 : 1);
+                    return;
+                case "--bench-physics":
+                    benchPhysics(args.length > 1 ? Integer.parseInt(args[1]) : 3_000,
+                            args.length > 2 ? Integer.parseInt(args[2]) : 500);
+                    return;
+                case "--bench-enemies":
+                    benchEnemies(args.length > 1 ? Integer.parseInt(args[1]) : 10_000);
+                    return;
+                case "--bench-save":
+                    benchSave(args.length > 1 ? Integer.parseInt(args[1]) : 500);
+                    return;
+                case "--fuzz":
+                    System.exit(fuzz(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+                    return;
+                case "--solve":
+                    System.exit(solveLevels(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+                    return;
+                case "--bench-env":
+                    VectorEnvironment.benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 64,
+                            args.length > 2 ? Integer.parseInt(args[2]) : 2_000,
+                            args.length > 3 ? Paths.get(args[3]) : null);
+                    return;
+                case "--mix-audio":
+                    requireArgs(args, 2, "--mix-audio <out.wav> [frames] [inputs]");
+                    mixAudio(args);
+                    return;
+                case "--merge-heatmaps":
+                    requireArgs(args, 3, "--merge-heatmaps <out-dir> <file|dir>...");
+                    mergeHeatmaps(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+                    return;
+            }
+        }
         launch(args);
     }
 
+    // Exits with a usage line when a command is missing arguments
+    private static void requireArgs(String[] args, int count, String usage) {
+        if (args.length < count) {
+            System.err.println("usage: " + usage);
+            System.exit(2);
+        }
+    }
+
     @Override
     public void start(Stage primaryStage) {
         canvas = new Canvas(GAME_WIDTH, GAME_HEIGHT);
-        gc = canvas.getGraphicsContext2D();
+        // -Dmario.display=scaled: a resizable window showing the native-resolution frame scaled up
+        if ("scaled".equalsIgnoreCase(System.getProperty("mario.display"))) {
+            display = new ScaledDisplay(canvas);
+            screen = display.frame;
+        } else {
+            screen = new CanvasSurface(canvas.getGraphicsContext2D());
+        }
 
         StackPane root = new StackPane();
         root.getChildren().add(canvas);
 
         Scene scene = new Scene(root, GAME_WIDTH, GAME_HEIGHT);
+        if (display != null) {
+            scene.widthProperty().addListener((obs, old, width) -> canvas.setWidth(width.doubleValue()));
+            scene.heightProperty().addListener((obs, old, height) -> canvas.setHeight(height.doubleValue()));
+        }
 
-        scene.setOnKeyPressed(e -> pressedKeys.add(e.getCode()));
+        scene.setOnKeyPressed(e -> {
+            // F11 toggles fullscreen in the scaled mode; held keys repeat, so only the first press counts
+            if (display != null && e.getCode() == KeyCode.F11 && !pressedKeys.contains(KeyCode.F11)) {
+                primaryStage.setFullScreen(!primaryStage.isFullScreen());
+            }
+            pressedKeys.add(e.getCode());
+        });
         scene.setOnKeyReleased(e -> pressedKeys.remove(e.getCode()));
 
+        try {
+            leaderboard = Leaderboard.open(Leaderboard.defaultPath(), Leaderboard.DEFAULT_CAPACITY);
+            highScores = leaderboard.top();
+        } catch (IOException e) {
+            System.err.println("High scores unavailable: " + e.getMessage());
+        }
+
+        if (Boolean.parseBoolean(System.getProperty("mario.telemetry", "true"))) {
+            telemetry = new Telemetry();
+        }
+        preloadLevels = true;
         initializeGame();
+        if (Boolean.parseBoolean(System.getProperty("mario.autosave", "true"))) {
+            saveFile = SaveFile.defaultPath();
+            if (Files.exists(saveFile)) {
+                loadGame();
+            }
+        }
+        watchLevelFile();
+
+        if (Boolean.parseBoolean(System.getProperty("mario.audio", "true"))) {
+            try {
+                audio = AudioMixer.open();
+            } catch (LineUnavailableException | IllegalArgumentException e) {
+                System.err.println("Audio unavailable: " + e.getMessage());
+            }
+        }
+
+        // -Dmario.metrics.port=N serves Prometheus metrics on http://127.0.0.1:N/metrics
+        Integer metricsPort = Integer.getInteger("mario.metrics.port");
+        if (metricsPort != null) {
+            try {
+                metrics = EngineMetrics.start(metricsPort);
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint unavailable: " + e.getMessage());
+            }
+        }
 
         AnimationTimer gameLoop = new AnimationTimer() {
             @Override
             public void handle(long now) {
                 if (lastTime == 0) lastTime = now;
-                double deltaTime = (now - lastTime) / 1_000_000_000.0;
+                long frameNanos = now - lastTime;
+                double deltaTime = frameNanos / 1_000_000_000.0;
                 lastTime = now;
+                long workStart = System.nanoTime();
 
-                if (!gameOver && !levelComplete) {
-                    update(deltaTime);
+                applyPendingLevelChange();
+                boolean ticked = !gameOver && !levelComplete;
+                if (ticked) {
+                    update(deltaTime, readInput());
+                    autosave(deltaTime);
+                }
+                if ((gameOver || levelComplete) && !scoreSubmitted) {
+                    submitScore();
                 }
                 handleGameStateInput();
-                render();
+                render(screen);
+                if (display != null) {
+                    display.present(primaryStage.getOutputScaleX(), primaryStage.getOutputScaleY());
+                }
+                long workNanos = System.nanoTime() - workStart;
+                quality.recordFrame(frameNanos, workNanos);
+                if (metrics != null) {
+                    metrics.recordFrame(frameNanos, workNanos, ticked);
+                    metrics.recordEntities(enemies.count, particles.size(), fireballs.size(), platforms.size(),
+                            coins.count, powerUps.count, quality.level());
+                }
             }
         };
         gameLoop.start();
 
         primaryStage.setTitle("Super Mario Bros Style Game");
         primaryStage.setScene(scene);
-        primaryStage.setResizable(false);
+        primaryStage.setResizable(display != null);
         primaryStage.show();
 
         canvas.requestFocus();
     }
 
+    @Override
+    public void stop() {
+        if (audio != null) {
+            audio.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (leaderboard != null) {
+            leaderboard.close();
+        }
+        if (saveFile != null) {
+            try {
+                SAVE_WRITER.submit(() -> { }).get(); // let an autosave being written finish
+                if (gameOver || levelComplete) {
+                    // A finished run is not resumed next time
+                    Files.deleteIfExists(saveFile);
+                } else {
+                    saveGame().get();
+                }
+            } catch (IOException | ExecutionException e) {
+                System.err.println("Failed to save game: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (telemetry != null) {
+            try {
+                telemetry.flush(Telemetry.defaultDirectory());
+            } catch (IOException e) {
+                System.err.println("Failed to save heatmaps: " + e.getMessage());
+            }
+        }
+    }
+
+    private void submitScore() {
+        scoreSubmitted = true;
+        if (leaderboard != null) {
+            String name = System.getProperty("mario.player", "MARIO");
+            leaderboard.submit(name, score, gameTimer, world, level);
+            highScores = leaderboard.top();
+        }
+    }
+
     private void initializeGame() {
         player = new Player(100, 400);
-        platforms = new ArrayList<>();
-        enemies = new ArrayList<>();
-        coins = new ArrayList<>();
-        powerUps = new ArrayList<>();
-        questionBlocks = new ArrayList<>();
-        pipes = new ArrayList<>();
+        powerUps = new EntityStore(16);
         particles = new ArrayList<>();
         fireballs = new ArrayList<>();
-        gameTimer = GAME_TIME_LIMIT;
         levelComplete = false;
 
-        createLevel();
+        // A restart always goes back to 1-1; a preload made for another level is no longer the next one
+        if (levelDefinition == null || world != 1 || level != 1) {
+            world = 1;
+            level = 1;
+            levelDefinition = loadLevelDefinition(world, level);
+            nextLevel = null;
+        }
+        installLevel(prepareLevel(world, level, levelDefinition));
+    }
+
+    // Builds a level's entities and terrain index without touching any game state, so it can run on the loader
+    private PreparedLevel prepareLevel(int world, int level, LevelDefinition def) {
+        PreparedLevel prepared = new PreparedLevel(world, level, def);
+        for (LevelDefinition.Item item : def.items) {
+            spawn(prepared, item);
+        }
+        prepared.terrain.rebuild(prepared.platforms);
+        return prepared;
+    }
+
+    // Swaps the prepared level in; everything here is a reference assignment, so it costs nothing on the FX thread
+    private void installLevel(PreparedLevel prepared) {
+        currentLevel = prepared;
+        world = prepared.world;
+        level = prepared.level;
+        levelDefinition = prepared.definition;
+        levelEndX = prepared.definition.endX;
+        levelFile = levelPath(world, level);
+        pendingLevel.set(null); // an edit waiting to be applied was read for the level being replaced
+        platforms = prepared.platforms;
+        pipes = prepared.pipes;
+        questionBlocks = prepared.questionBlocks;
+        enemies = prepared.enemies;
+        coins = prepared.coins;
+        terrain = prepared.terrain;
+        gameTimer = GAME_TIME_LIMIT;
+        heatmap = telemetry != null ? telemetry.startLevel(world, level, levelEndX) : null;
+        heatmapHistory = null;
+
+        if (nextLevel == null && preloadLevels) {
+            nextLevel = preloadLevelAfter(world, level);
+        }
+    }
+
+    // Loads, spawns and indexes the following level in the background while this one is played.
+    // The loader is one thread shared by every game, so only the window uses it: headless games
+    // stepped on pool workers would queue behind each other in join.
+    private CompletableFuture<PreparedLevel> preloadLevelAfter(int world, int level) {
+        return CompletableFuture.supplyAsync(() -> {
+            // Sprite assets are shared, so warming them here keeps their first build off the FX thread too
+            parallaxLayers();
+            return prepareLevelAfter(world, level);
+        }, LEVEL_LOADER);
+    }
+
+    // The level following world-level, or null after the last one
+    private PreparedLevel prepareLevelAfter(int world, int level) {
+        int nextWorld = level < LEVELS_PER_WORLD ? world : world + 1;
+        int nextNumber = level < LEVELS_PER_WORLD ? level + 1 : 1;
+        if (!Files.exists(levelPath(nextWorld, nextNumber))) return null;
+        try {
+            return prepareLevel(nextWorld, nextNumber, readLevelDefinition(nextWorld, nextNumber));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Reached the end of the level: move on to the next one, or finish the game after the last one
+    private void advanceLevel() {
+        PreparedLevel next;
+        try {
+            // A preload is normally long done by now; joining only waits when a level is cleared within
+            // a few milliseconds
+            next = nextLevel != null ? nextLevel.join() : prepareLevelAfter(world, level);
+        } catch (CompletionException | UncheckedIOException e) {
+            // A broken level file ends the run here rather than standing in another layout under its name
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof UncheckedIOException) cause = cause.getCause();
+            System.err.println("Could not load the level after " + world + "-" + level + ": " + cause.getMessage());
+            next = null;
+        }
+        if (next == null) {
+            levelComplete = true;
+            return;
+        }
+
+        nextLevel = null;
+        installLevel(next);
+        player.x = player.startX;
+        player.y = player.startY;
+        player.velX = 0;
+        player.velY = 0;
+        player.support = -1;
+        powerUps.clear();
+        particles.clear();
+        fireballs.clear();
+        cameraX = 0;
+    }
+
+    private void spawn(PreparedLevel target, LevelDefinition.Item item) {
+        switch (item.kind) {
+            case PLATFORM:
+            case ONE_WAY:
+            case MOVER:
+            case FALLER:
+                target.platforms.add(createPlatform(item));
+                break;
+            case PIPE:
+                target.pipes.add(new Pipe(item.x, item.y, item.width, item.height));
+                break;
+            case BLOCK:
+                target.questionBlocks.add(new QuestionBlock(item.x, item.y, PowerUpType.valueOf(item.type)));
+                break;
+            case GOOMBA:
+                addGoomba(target.enemies, item.x, item.y);
+                break;
+            case KOOPA:
+                addKoopa(target.enemies, item.x, item.y);
+                break;
+            case PIRANHA:
+                addPiranha(target.enemies, item.x, item.y);
+                break;
+            case COIN:
+                addCoin(target.coins, item.x, item.y);
+                break;
+        }
+    }
+
+    private Platform createPlatform(LevelDefinition.Item item) {
+        Platform platform = new Platform(item.x, item.y, item.width, item.height, PlatformType.valueOf(item.type));
+        platform.source = item;
+        switch (item.kind) {
+            case ONE_WAY:
+                platform.oneWay = true;
+                break;
+            case MOVER:
+                platform.motion = PlatformMotion.MOVING;
+                platform.travelX = item.travelX;
+                platform.travelY = item.travelY;
+                platform.period = item.period;
+                break;
+            case FALLER:
+                platform.motion = PlatformMotion.FALLING;
+                break;
+        }
+        return platform;
+    }
+
+    // Loads the level file for the given world and level if there is one, otherwise the built-in layout
+    private static LevelDefinition loadLevelDefinition(int world, int level) {
+        Path file = levelPath(world, level);
+        if (Files.exists(file)) {
+            try {
+                return readLevelDefinition(world, level);
+            } catch (IOException e) {
+                System.err.println("Could not load " + file + ", using built-in level: " + e.getMessage());
+            }
+        }
+        return LevelDefinition.builtIn();
+    }
+
+    // The level file, parsed; a parse error comes back as an IOException naming the file
+    private static LevelDefinition readLevelDefinition(int world, int level) throws IOException {
+        Path file = levelPath(world, level);
+        try {
+            return LevelDefinition.parse(Files.readAllLines(file));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Path levelPath(int world, int level) {
+        return Paths.get(System.getProperty("mario.levels", "levels"), world + "-" + level + ".lvl");
+    }
+
+    // Applies a level edit picked up by the watcher. Only the items that differ from the running
+    // definition are touched: the player, collected coins, used blocks and moving enemies keep their state.
+    private void applyPendingLevelChange() {
+        if (nextLevelStale.getAndSet(false) && nextLevel != null) {
+            // The preloaded copy was built from the old file; the old future is simply dropped
+            nextLevel = preloadLevelAfter(world, level);
+        }
+        LevelEdit edit = pendingLevel.getAndSet(null);
+        // An edit read before the player moved on to another level belongs to that other level
+        if (edit == null || !edit.file.equals(levelFile.toAbsolutePath())) return;
+        LevelDefinition next = edit.definition;
+
+        LevelDefinition.Diff diff = levelDefinition.diff(next);
+        for (LevelDefinition.Item item : diff.removed) {
+            despawn(item);
+        }
+        for (LevelDefinition.Item item : diff.added) {
+            if (item.kind.isPlatform()) {
+                Platform platform = createPlatform(item);
+                platforms.add(platform);
+                terrain.add(platform);
+            } else {
+                spawn(currentLevel, item);
+            }
+        }
+        levelDefinition = next;
+        levelEndX = next.endX;
     }
 
-    private void createLevel() {
-        // Ground platforms
-        for (int i = 0; i < 60; i++) {
-            platforms.add(new Platform(i * TILE_SIZE, GAME_HEIGHT - TILE_SIZE, TILE_SIZE, TILE_SIZE, PlatformType.GROUND));
+    private void despawn(LevelDefinition.Item item) {
+        switch (item.kind) {
+            case PLATFORM:
+            case ONE_WAY:
+            case MOVER:
+            case FALLER:
+                // Matched on the item it was built from, since moving platforms are rarely where they spawned
+                for (int i = 0; i < platforms.size(); i++) {
+                    Platform p = platforms.get(i);
+                    if (p.source.equals(item)) {
+                        // Mirror the terrain index's swap-removal so both stay index-aligned
+                        int last = platforms.size() - 1;
+                        platforms.set(i, platforms.get(last));
+                        platforms.remove(last);
+                        terrain.removeAt(i);
+                        remapSupports(i, last);
+                        return;
+                    }
+                }
+                break;
+            // One item each: a duplicated line in the file stands for a second, identical object
+            case PIPE:
+                for (int i = 0; i < pipes.size(); i++) {
+                    Pipe p = pipes.get(i);
+                    if (p.x == item.x && p.y == item.y && p.width == item.width && p.height == item.height) {
+                        pipes.remove(i);
+                        break;
+                    }
+                }
+                break;
+            case BLOCK:
+                for (int i = 0; i < questionBlocks.size(); i++) {
+                    QuestionBlock b = questionBlocks.get(i);
+                    if (b.x == item.x && b.y == item.y && b.powerUpType.name().equals(item.type)) {
+                        questionBlocks.remove(i);
+                        break;
+                    }
+                }
+                break;
+            case GOOMBA:
+            case KOOPA:
+            case PIRANHA:
+                // Enemies walk, shrink into shells or sink into pipes, so they are matched on where they
+                // spawned and where their feet are
+                for (int i = 0; i < enemies.count; i++) {
+                    if (enemies.originX[i] == item.x && enemies.y[i] + enemies.height[i] == item.y + item.height) {
+                        enemies.removeAt(i);
+                        break;
+                    }
+                }
+                break;
+            case COIN:
+                for (int i = 0; i < coins.count; i++) {
+                    if (coins.x[i] == item.x && coins.y[i] == item.y) {
+                        coins.removeAt(i);
+                        break;
+                    }
+                }
+                break;
         }
+    }
 
-        // Simple brick platform for testing
-        for (int i = 0; i < 4; i++) {
-            platforms.add(new Platform(300 + i * TILE_SIZE, GAME_HEIGHT - TILE_SIZE * 3, TILE_SIZE, 16, PlatformType.BRICK));
+    // Contact caches hold terrain indices: after platform removed is swap-removed, whatever stood on it
+    // has lost its support and whatever stood on the last platform follows it to its new index
+    private void remapSupports(int removed, int last) {
+        player.support = remapSupport(player.support, removed, last);
+        EntityStore e = enemies;
+        for (int i = 0; i < e.count; i++) {
+            e.support[i] = remapSupport(e.support[i], removed, last);
         }
+    }
+
+    private static int remapSupport(int support, int removed, int last) {
+        return support == removed ? -1 : support == last ? removed : support;
+    }
+
+    // Watches the whole levels directory: the level being played is reloaded in place,
+    // an edit to any other level just invalidates the preloaded next level
+    private void watchLevelFile() {
+        Path dir = levelFile.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) return;
+
+        Thread watcher = new Thread(() -> {
+            try (WatchService service = dir.getFileSystem().newWatchService()) {
+                dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = service.take();
+                    Path file = levelFile.toAbsolutePath(); // read after take: the level may change while it waits
+                    boolean changed = drainLevelEvents(key, file);
+                    if (!changed) continue;
+
+                    // Editors save in several writes; wait until the directory has been quiet for a moment
+                    WatchKey more;
+                    while ((more = service.poll(LEVEL_RELOAD_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        drainLevelEvents(more, file);
+                    }
+                    if (!file.equals(levelFile.toAbsolutePath())) continue; // moved on to another level meanwhile
+                    try {
+                        // Parsed here so the game loop only ever sees complete definitions. An empty
+                        // read is a file caught mid-write, not a level with nothing in it.
+                        LevelDefinition def = LevelDefinition.parse(Files.readAllLines(file));
+                        if (def.items.isEmpty()) {
+                            System.err.println("Ignoring level edit: " + file.getFileName() + " has no items");
+                        } else {
+                            pendingLevel.set(new LevelEdit(file, def));
+                        }
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.println("Ignoring level edit: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Level hot-reload disabled: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "level-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
 
-        // One floating platform
-        platforms.add(new Platform(600, GAME_HEIGHT - TILE_SIZE * 4, TILE_SIZE * 3, 20, PlatformType.GROUND));
+    // True if the events include the level being played; edits to any other level mark the preload stale
+    private boolean drainLevelEvents(WatchKey key, Path file) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (file.getFileName().equals(event.context())) {
+                changed = true;
+            } else if (event.context().toString().endsWith(".lvl")) {
+                nextLevelStale.set(true);
+            }
+        }
+        key.reset();
+        return changed;
+    }
 
-        // Single pipe at the end
-        pipes.add(new Pipe(LEVEL_END_X - 100, GAME_HEIGHT - TILE_SIZE * 3, TILE_SIZE * 2, TILE_SIZE * 2));
+    private static void addGoomba(EntityStore enemies, double x, double y) {
+        int i = enemies.add(x, y, 24, 24, EnemyKind.GOOMBA.ordinal(), -1, 0);
+        enemies.phase[i] = Animation.phaseFor(x, y);
+    }
 
-        // Only 2 question blocks - positioned for EASY hitting
-        // First block: Right above the brick platform, very close
-        questionBlocks.add(new QuestionBlock(350, GAME_HEIGHT - TILE_SIZE * 3 - TILE_SIZE - 2, PowerUpType.MUSHROOM));
+    private static void addKoopa(EntityStore enemies, double x, double y) {
+        int i = enemies.add(x, y, 24, 32, EnemyKind.KOOPA.ordinal(), -1, 0);
+        enemies.phase[i] = Animation.phaseFor(x, y);
+    }
 
-        // Second block: At ground level, easy jump height
-        questionBlocks.add(new QuestionBlock(500, GAME_HEIGHT - TILE_SIZE - TILE_SIZE - 10, PowerUpType.FIRE_FLOWER));
+    // A plant starts hidden: no height, standing on the pipe top below its risen box
+    private static void addPiranha(EntityStore enemies, double x, double y) {
+        int i = enemies.add(x, y + PIRANHA_HEIGHT, 24, 0, EnemyKind.PIRANHA.ordinal(), 0, 0);
+        enemies.phase[i] = Animation.phaseFor(x, y);
+    }
 
-        // Simple enemies
-        enemies.add(new Goomba(400, GAME_HEIGHT - TILE_SIZE - 24));
-        enemies.add(new Goomba(700, GAME_HEIGHT - TILE_SIZE - 24));
+    private static void addCoin(EntityStore coins, double x, double y) {
+        int i = coins.add(x, y, 16, 16, 0, 0, 0);
+        coins.phase[i] = Animation.phaseFor(x, y);
+    }
 
-        // Some coins for collection
-        coins.add(new Coin(250, GAME_HEIGHT - TILE_SIZE - 30));
-        coins.add(new Coin(280, GAME_HEIGHT - TILE_SIZE - 30));
-        coins.add(new Coin(1300, GAME_HEIGHT - TILE_SIZE - 30));
-        coins.add(new Coin(1330, GAME_HEIGHT - TILE_SIZE - 30));
+    private void addPowerUp(double x, double y, PowerUpType type) {
+        // Mushrooms pop out of the block with an initial upward velocity
+        double velY = type == PowerUpType.MUSHROOM ? -4 : 0;
+        powerUps.add(x, y, 24, 24, type.ordinal(), 2, velY);
     }
 
-    private void update(double deltaTime) {
-        handleInput();
+    private void update(double deltaTime, int input) {
+        if (fixedPhysics == null) {
+            handleInput(input);
+        }
+        animationTime += deltaTime;
 
         // Update game timer
         gameTimer -= deltaTime;
@@ -149,17 +785,30 @@ public class MarioGameEnhanced extends Application {
             gameTimer = 0;
         }
 
-        player.update(deltaTime);
+        updatePlatforms(deltaTime);
+        if (fixedPhysics != null) {
+            // Fireballs leave from where the player was, as they do when input comes first
+            handleFireInput(input);
+            fixedPhysics.stepPlayer(input, deltaTime);
+        } else {
+            player.update(deltaTime);
+        }
 
         // Check level completion
-        if (player.x >= LEVEL_END_X) {
-            levelComplete = true;
+        if (player.x >= levelEndX) {
+            advanceLevel();
         }
 
         // Update enemies
-        for (Enemy enemy : enemies) {
-            enemy.update(deltaTime);
+        if (fixedPhysics != null) {
+            fixedPhysics.stepEnemies();
+        } else {
+            updateEnemies(deltaTime);
         }
+        knockOutByShells();
+
+        // Update power-ups
+        updatePowerUps(deltaTime);
 
         // Update fireballs
         Iterator<Fireball> fireballIter = fireballs.iterator();
@@ -182,10 +831,12 @@ public class MarioGameEnhanced extends Application {
         }
 
         checkCollisions();
-        updateCamera();
+        updateCamera(deltaTime);
+        recordHeat(Heatmap.PRESENCE, player.x + player.width / 2, player.y + player.height / 2);
 
         // Check game over conditions
         if (player.y > GAME_HEIGHT + 100) {
+            recordHeat(Heatmap.DEATH, player.x + player.width / 2, player.y);
             lives--;
             if (lives <= 0) {
                 gameOver = true;
@@ -195,10 +846,21 @@ public class MarioGameEnhanced extends Application {
         }
     }
 
-    private void handleInput() {
+    private int readInput() {
+        int input = 0;
+        if (pressedKeys.contains(KeyCode.LEFT) || pressedKeys.contains(KeyCode.A)) input |= INPUT_LEFT;
+        if (pressedKeys.contains(KeyCode.RIGHT) || pressedKeys.contains(KeyCode.D)) input |= INPUT_RIGHT;
+        if (pressedKeys.contains(KeyCode.SPACE) ||
+                pressedKeys.contains(KeyCode.UP) || pressedKeys.contains(KeyCode.W)) input |= INPUT_JUMP;
+        if (pressedKeys.contains(KeyCode.SHIFT)) input |= INPUT_RUN;
+        if (pressedKeys.contains(KeyCode.X) || pressedKeys.contains(KeyCode.CONTROL)) input |= INPUT_FIRE;
+        return input;
+    }
+
+    private void handleInput(int input) {
         // Movement - slower
-        boolean leftPressed = pressedKeys.contains(KeyCode.LEFT) || pressedKeys.contains(KeyCode.A);
-        boolean rightPressed = pressedKeys.contains(KeyCode.RIGHT) || pressedKeys.contains(KeyCode.D);
+        boolean leftPressed = (input & INPUT_LEFT) != 0;
+        boolean rightPressed = (input & INPUT_RIGHT) != 0;
 
         if (leftPressed && !rightPressed) {
             player.moveLeft();
@@ -209,8 +871,7 @@ public class MarioGameEnhanced extends Application {
         }
 
         // Jump
-        boolean jumpPressed = pressedKeys.contains(KeyCode.SPACE) ||
-                pressedKeys.contains(KeyCode.UP) || pressedKeys.contains(KeyCode.W);
+        boolean jumpPressed = (input & INPUT_JUMP) != 0;
 
         if (jumpPressed) {
             player.jump();
@@ -222,10 +883,13 @@ public class MarioGameEnhanced extends Application {
         }
 
         // Run button
-        player.setRunning(pressedKeys.contains(KeyCode.SHIFT));
+        player.setRunning((input & INPUT_RUN) != 0);
 
-        // Fire button
-        boolean firePressed = pressedKeys.contains(KeyCode.X) || pressedKeys.contains(KeyCode.CONTROL);
+        handleFireInput(input);
+    }
+
+    private void handleFireInput(int input) {
+        boolean firePressed = (input & INPUT_FIRE) != 0;
 
         if (firePressed && !fireKeyPressed && player.powerState == PowerState.FIRE) {
             shootFireball();
@@ -238,6 +902,59 @@ public class MarioGameEnhanced extends Application {
         if ((gameOver || levelComplete) && pressedKeys.contains(KeyCode.R)) {
             restartGame();
         }
+
+        // H cycles the heatmap overlay through each event, then off
+        boolean heatmapPressed = pressedKeys.contains(KeyCode.H);
+        if (heatmapPressed && !heatmapKeyPressed && telemetry != null) {
+            heatmapOverlay = heatmapOverlay + 1 < Heatmap.EVENTS ? heatmapOverlay + 1 : -1;
+        }
+        heatmapKeyPressed = heatmapPressed;
+
+        // M toggles the music
+        boolean musicPressed = pressedKeys.contains(KeyCode.M);
+        if (musicPressed && !musicKeyPressed && audio != null) {
+            audio.setMusic(!audio.musicOn());
+        }
+        musicKeyPressed = musicPressed;
+
+        // F5 saves, F9 goes back to the last save
+        boolean savePressed = pressedKeys.contains(KeyCode.F5);
+        if (savePressed && !saveKeyPressed && saveFile != null && !gameOver && !levelComplete) {
+            saveGame();
+        }
+        saveKeyPressed = savePressed;
+        boolean loadPressed = pressedKeys.contains(KeyCode.F9);
+        if (loadPressed && !loadKeyPressed && saveFile != null && Files.exists(saveFile)) {
+            loadGame();
+        }
+        loadKeyPressed = loadPressed;
+    }
+
+    private void playSound(AudioMixer.Sound sound) {
+        if (audio != null) {
+            audio.play(sound);
+        }
+    }
+
+    private void recordHeat(int event, double x, double y) {
+        if (heatmap != null) {
+            heatmap.record(event, x, y);
+        }
+    }
+
+    // The saved map for the overlay, read in the background the first time it is shown; null until loaded
+    private Heatmap loadedHeatmapHistory() {
+        if (heatmapHistory == null) {
+            Path file = Telemetry.file(Telemetry.defaultDirectory(), world, level);
+            heatmapHistory = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Files.exists(file) ? Heatmap.read(file) : null;
+                } catch (IOException e) {
+                    return null;
+                }
+            }, LEVEL_LOADER);
+        }
+        return heatmapHistory.getNow(null);
     }
 
     private void shootFireball() {
@@ -245,71 +962,73 @@ public class MarioGameEnhanced extends Application {
             double fireballX = player.facingRight ? player.x + player.width : player.x - 8;
             double fireballY = player.y + player.height / 2;
             fireballs.add(new Fireball(fireballX, fireballY, player.facingRight));
+            playSound(AudioMixer.Sound.FIREBALL);
         }
     }
 
-    private void checkCollisions() {
-        // Platform collisions
-        for (Platform platform : platforms) {
-            if (player.intersects(platform)) {
-                handlePlatformCollision(player, platform);
-            }
-        }
-
-        // Enemy collisions
-        Iterator<Enemy> enemyIter = enemies.iterator();
-        while (enemyIter.hasNext()) {
-            Enemy enemy = enemyIter.next();
-            if (player.intersects(enemy) && !player.isInvincible()) {
-                if (player.velY > 0 && player.y < enemy.y - 5) {
-                    // Stomp enemy
-                    enemy.stomp();
-                    if (enemy.isDead()) {
-                        enemyIter.remove();
-                        score += 100;
-                        addScoreParticle(enemy.x, enemy.y, "100");
+    // Registration order is dispatch order. Terrain is not in the collision world: checkCollisions
+    // resolves it against the terrain index before any of these run.
+    private void registerCollisionHandlers() {
+        collisionWorld.register(CollisionLayer.PLAYER, CollisionLayer.ENEMY, (p, e) -> {
+            // A plant down its pipe has no height and touches nothing
+            if (enemies.height[e] <= 0) return;
+            if (player.intersects(enemies, e) && !player.isInvincible()) {
+                EnemyKind kind = ENEMY_KINDS[enemies.kind[e]];
+                boolean stomp = player.velY > 0 && player.y < enemies.y[e] - 5;
+                if (kind == EnemyKind.SHELL && (stomp || enemies.velX[e] == 0)) {
+                    // Stomping a moving shell stops it; touching a still one kicks it away
+                    if (enemies.velX[e] != 0) {
+                        enemies.velX[e] = 0;
+                    } else {
+                        kickShell(e);
+                    }
+                    playSound(AudioMixer.Sound.STOMP);
+                    if (stomp) player.velY = -8;
+                } else if (stomp && kind != EnemyKind.PIRANHA) {
+                    if (kind == EnemyKind.KOOPA) {
+                        // A stomped koopa shrinks into its shell, feet where they were
+                        enemies.kind[e] = EnemyKind.SHELL.ordinal();
+                        enemies.y[e] += enemies.height[e] - 24;
+                        enemies.height[e] = 24;
+                        enemies.velX[e] = 0;
+                    } else {
+                        // Stomp enemy
+                        collisionWorld.retire(CollisionLayer.ENEMY, e);
                     }
+                    score += 100;
+                    addScoreParticle(enemies.x[e], enemies.y[e], "100");
+                    playSound(AudioMixer.Sound.STOMP);
                     player.velY = -8;
                 } else {
                     // Player hit
                     player.takeDamage();
                 }
             }
-        }
-
-        // Fireball-enemy collisions
-        Iterator<Fireball> fireballIter = fireballs.iterator();
-        while (fireballIter.hasNext()) {
-            Fireball fireball = fireballIter.next();
-            Iterator<Enemy> enemyIter2 = enemies.iterator();
-            while (enemyIter2.hasNext()) {
-                Enemy enemy = enemyIter2.next();
-                if (fireball.intersects(enemy)) {
-                    enemy.stomp();
-                    if (enemy.isDead()) {
-                        enemyIter2.remove();
-                        score += 200;
-                        addScoreParticle(enemy.x, enemy.y, "200");
-                    }
-                    fireball.setDead();
-                    break;
-                }
-            }
-        }
+        });
+
+        collisionWorld.register(CollisionLayer.FIREBALL, CollisionLayer.ENEMY, (f, e) -> {
+            if (enemies.height[e] <= 0) return;
+            // A fireball is spent on the first enemy it reaches
+            collisionWorld.retire(CollisionLayer.ENEMY, e);
+            collisionWorld.retire(CollisionLayer.FIREBALL, f);
+            fireballs.get(f).setDead();
+            score += 200;
+            addScoreParticle(enemies.x[e], enemies.y[e], "200");
+        });
 
         // Question block collisions - MUCH more lenient detection
-        for (QuestionBlock block : questionBlocks) {
+        collisionWorld.register(CollisionLayer.PLAYER, CollisionLayer.BLOCK, (p, b) -> {
+            QuestionBlock block = questionBlocks.get(b);
             if (!block.isUsed() && player.intersects(block)) {
                 // Much simpler collision detection - if player touches block and is moving up
                 if (player.velY <= 0 && player.y < block.y + block.height) {
                     block.hit();
-                    PowerUp powerUp = block.spawnPowerUp();
-                    if (powerUp != null) {
-                        powerUps.add(powerUp);
-                    }
+                    block.spawnPowerUp();
+                    playSound(block.powerUpType == PowerUpType.COIN ? AudioMixer.Sound.COIN : AudioMixer.Sound.BLOCK);
 
                     // Add coin directly to score if it's a coin block
                     if (block.powerUpType == PowerUpType.COIN) {
+                        recordHeat(Heatmap.PICKUP, block.x + block.width / 2, block.y);
                         score += 200;
                         addScoreParticle(block.x + block.width/2, block.y, "200");
                     }
@@ -321,35 +1040,263 @@ public class MarioGameEnhanced extends Application {
                     addHitParticle(block.x + block.width/2, block.y);
                 }
             }
+        });
+
+        collisionWorld.register(CollisionLayer.PLAYER, CollisionLayer.POWER_UP, (p, u) -> {
+            if (player.intersects(powerUps, u)) {
+                collisionWorld.retire(CollisionLayer.POWER_UP, u);
+                player.collectPowerUp(POWER_UP_TYPES[powerUps.kind[u]]);
+                playSound(AudioMixer.Sound.POWER_UP);
+                recordHeat(Heatmap.PICKUP, powerUps.x[u], powerUps.y[u]);
+                score += 1000;
+                addScoreParticle(powerUps.x[u], powerUps.y[u], "1000");
+            }
+        });
+
+        collisionWorld.register(CollisionLayer.PLAYER, CollisionLayer.COIN, (p, c) -> {
+            if (player.intersects(coins, c)) {
+                collisionWorld.retire(CollisionLayer.COIN, c);
+                recordHeat(Heatmap.PICKUP, coins.x[c], coins.y[c]);
+                playSound(AudioMixer.Sound.COIN);
+                score += 200;
+                addScoreParticle(coins.x[c], coins.y[c], "200");
+            }
+        });
+    }
+
+    // Sends a still shell away from the player, moved clear so the kick doesn't also land as a hit
+    private void kickShell(int e) {
+        EntityStore s = enemies;
+        boolean right = s.x[e] + s.width[e] / 2 >= player.x + player.width / 2;
+        s.velX[e] = right ? SHELL_SPEED : -SHELL_SPEED;
+        s.x[e] = right ? Math.max(s.x[e], player.x + player.width) : Math.min(s.x[e], player.x - s.width[e]);
+    }
+
+    // Moving shells knock out whatever they run into, other shells included, so one kick can clear a
+    // crowd. Runs between the enemy step and the collision pass, like a handler would.
+    private void knockOutByShells() {
+        EntityStore e = enemies;
+        if (shellSweep.sweep(e) == 0) return;
+        // Descending so each swap-removal pulls in an already-checked slot
+        for (int i = e.count - 1; i >= 0; i--) {
+            if (shellSweep.isHit(i)) {
+                score += 100;
+                addScoreParticle(e.x[i], e.y[i], "100");
+                e.removeAt(i);
+            }
+        }
+        playSound(AudioMixer.Sound.STOMP);
+    }
+
+    private void checkCollisions() {
+        CollisionWorld world = collisionWorld;
+        world.begin();
+
+        // The player box is padded because terrain resolution moves it during the pass;
+        // handlers re-test against the live position
+        double boxX = player.x - PLAYER_BROADPHASE_SKIN, boxY = player.y - PLAYER_BROADPHASE_SKIN;
+        double boxWidth = player.width + PLAYER_BROADPHASE_SKIN * 2, boxHeight = player.height + PLAYER_BROADPHASE_SKIN * 2;
+        if (world.isEnabled(CollisionLayer.PLAYER)) {
+            world.beginLayer(CollisionLayer.PLAYER);
+            world.add(boxX, boxY, boxWidth, boxHeight);
         }
 
-        // Power-up collisions
-        Iterator<PowerUp> powerUpIter = powerUps.iterator();
-        while (powerUpIter.hasNext()) {
-            PowerUp powerUp = powerUpIter.next();
-            powerUp.update(0.016);
+        addStoreColliders(world, CollisionLayer.ENEMY, enemies);
 
-            if (player.intersects(powerUp)) {
-                player.collectPowerUp(powerUp.type);
-                powerUpIter.remove();
-                score += 1000;
-                addScoreParticle(powerUp.x, powerUp.y, "1000");
+        if (world.isEnabled(CollisionLayer.FIREBALL)) {
+            world.beginLayer(CollisionLayer.FIREBALL);
+            for (Fireball fireball : fireballs) {
+                world.add(fireball.x, fireball.y, fireball.width, fireball.height);
             }
         }
 
-        // Coin collisions
-        Iterator<Coin> coinIter = coins.iterator();
-        while (coinIter.hasNext()) {
-            Coin coin = coinIter.next();
-            if (player.intersects(coin)) {
-                coinIter.remove();
-                score += 200;
-                addScoreParticle(coin.x, coin.y, "200");
+        if (world.isEnabled(CollisionLayer.BLOCK)) {
+            world.beginLayer(CollisionLayer.BLOCK);
+            for (QuestionBlock block : questionBlocks) {
+                world.add(block.x, block.y, block.width, block.height);
+            }
+        }
+
+        addStoreColliders(world, CollisionLayer.POWER_UP, powerUps);
+        addStoreColliders(world, CollisionLayer.COIN, coins);
+
+        // Terrain is static between edits and already packed, so rather than being bucketed into the grid
+        // every frame it is queried directly, in index order, before any handler touches the player. The
+        // fixed-point mode resolves terrain itself while stepping the player.
+        if (fixedPhysics == null) {
+            TerrainIndex t = terrain;
+            hitMask = CollisionKernel.ensureCapacity(hitMask, t.count);
+            if (CollisionKernel.overlapMask(boxX, boxY, boxWidth, boxHeight, t.x, t.y, t.width, t.height, t.count, hitMask) > 0) {
+                for (int i = CollisionKernel.firstHit(hitMask, t.count); i >= 0; i = CollisionKernel.nextHit(hitMask, i, t.count)) {
+                    // The platform being stood on was already settled by the player's contact cache
+                    if (i == player.support) continue;
+                    Platform platform = platforms.get(i);
+                    if (player.intersects(platform)) {
+                        handlePlatformCollision(player, platform, i);
+                    }
+                }
+            }
+        }
+
+        world.collide();
+
+        // Entities retired by handlers are removed after the pass so indices stay stable during it
+        removeRetired(world, CollisionLayer.ENEMY, enemies);
+        removeRetired(world, CollisionLayer.POWER_UP, powerUps);
+        removeRetired(world, CollisionLayer.COIN, coins);
+    }
+
+    private void addStoreColliders(CollisionWorld world, CollisionLayer layer, EntityStore store) {
+        if (!world.isEnabled(layer)) return;
+        world.beginLayer(layer);
+        for (int i = 0; i < store.count; i++) {
+            world.add(store.x[i], store.y[i], store.width[i], store.height[i]);
+        }
+    }
+
+    private void removeRetired(CollisionWorld world, CollisionLayer layer, EntityStore store) {
+        // Descending so each swap-removal pulls in an already-checked slot
+        for (int i = store.count - 1; i >= 0; i--) {
+            if (world.isRetired(layer, i)) {
+                store.removeAt(i);
+            }
+        }
+    }
+
+    // Kinematic platforms move before anything else so riders can follow them in the same frame
+    private void updatePlatforms(double deltaTime) {
+        TerrainIndex t = terrain;
+        for (int m = 0; m < t.moverCount; m++) {
+            int i = t.movers[m];
+            Platform platform = platforms.get(i);
+            platform.move(deltaTime, player.support == i);
+            t.sync(i, platform);
+        }
+    }
+
+    // Enemy system: walks every enemy and turns it around at walls and ledges
+    private void updateEnemies(double deltaTime) {
+        EntityStore e = enemies;
+        TerrainIndex t = terrain;
+        hitMask = CollisionKernel.ensureCapacity(hitMask, t.count);
+        for (int i = 0; i < e.count; i++) {
+            if (e.kind[i] == EnemyKind.PIRANHA.ordinal()) {
+                updatePiranha(i);
+                continue;
+            }
+
+            // Ride the platform stood on last frame; only kinematic ones ever move
+            int s = e.support[i];
+            if (s >= t.count) s = -1;
+            if (s >= 0 && platforms.get(s).motion != PlatformMotion.STATIC) {
+                e.x[i] += platforms.get(s).dx;
+                e.y[i] = t.y[s] - e.height[i];
+            }
+            e.x[i] += e.velX[i];
+
+            double x = e.x[i], y = e.y[i], width = e.width[i], height = e.height[i];
+
+            // Check platform collisions. Every wall the moved box overlaps turns the enemy, tested against
+            // the box before any correction. The per-platform loop this replaced stopped at the first
+            // platform found supporting the enemy, so whether a wall turned it depended on whether the wall
+            // came before or after its floor in the platform list; walls after it were walked through.
+            if (CollisionKernel.overlapMask(x, y, width, height, t.x, t.y, t.width, t.height, t.count, hitMask) > 0) {
+                for (int p = CollisionKernel.firstHit(hitMask, t.count); p >= 0; p = CollisionKernel.nextHit(hitMask, p, t.count)) {
+                    // Walkers pass through one-way platforms and are never walls to their own floor
+                    if (p == s || platforms.get(p).oneWay) continue;
+                    if (e.velX[i] > 0) {
+                        x = t.x[p] - width;
+                    } else {
+                        x = t.x[p] + t.width[p];
+                    }
+                    e.velX[i] = -e.velX[i];
+                }
+            }
+            e.x[i] = x;
+
+            // Check if enemy is on a platform: the cached contact first, the whole terrain only when it lets go
+            if (s < 0 || !CollisionKernel.supports(x + width/2, y + height, 5, t.x, t.y, t.width, s)) {
+                s = CollisionKernel.supportIndex(x + width/2, y + height, 5, t.x, t.y, t.width, t.count);
+            }
+            e.support[i] = s;
+            boolean onPlatform = s >= 0;
+
+            // Turn around at edges if not on platform
+            if (!onPlatform) {
+                e.velX[i] = -e.velX[i];
+            }
+
+            // Boundary checks; a kicked shell goes wherever it was sent
+            if (e.kind[i] == EnemyKind.SHELL.ordinal()) continue;
+            if (x < e.originX[i] - 200) {
+                e.velX[i] = Math.abs(e.velX[i]);
+            } else if (x > e.originX[i] + 200) {
+                e.velX[i] = -Math.abs(e.velX[i]);
+            }
+        }
+    }
+
+    // Piranha plants keep their cycle clock in velY, in frames, and the pipe top they rise from at
+    // y + height. Their motion depends only on the clock, so both physics modes share this step.
+    private void updatePiranha(int i) {
+        EntityStore e = enemies;
+        double pipeTop = e.y[i] + e.height[i];
+        double clock = e.velY[i];
+        // A hidden plant waits while the player is next to its pipe
+        boolean near = player.x < e.x[i] + e.width[i] + PIRANHA_CLEARANCE &&
+                player.x + player.width > e.x[i] - PIRANHA_CLEARANCE;
+        if (!(near && clock < PIRANHA_HIDDEN_FRAMES)) {
+            clock = (clock + 1) % PIRANHA_CYCLE;
+        }
+        e.velY[i] = clock;
+        e.height[i] = piranhaHeight(clock);
+        e.y[i] = pipeTop - e.height[i];
+    }
+
+    // Hidden, rising a pixel a frame, up, then sinking back
+    private static double piranhaHeight(double clock) {
+        double t = clock - PIRANHA_HIDDEN_FRAMES;
+        if (t <= 0) return 0;
+        if (t < PIRANHA_HEIGHT) return t;
+        t -= PIRANHA_HEIGHT + PIRANHA_UP_FRAMES;
+        return t < 0 ? PIRANHA_HEIGHT : Math.max(PIRANHA_HEIGHT - t, 0);
+    }
+
+    // Power-up system: only mushrooms move, bouncing off walls and landing on platforms
+    private void updatePowerUps(double deltaTime) {
+        for (int i = 0; i < powerUps.count; i++) {
+            updatePowerUp(i, deltaTime);
+        }
+    }
+
+    private void updatePowerUp(int i, double deltaTime) {
+        EntityStore p = powerUps;
+        if (p.kind[i] != PowerUpType.MUSHROOM.ordinal()) return;
+
+        p.x[i] += p.velX[i];
+        p.y[i] += p.velY[i];
+        p.velY[i] += GRAVITY * 0.5; // Lighter gravity for power-ups
+
+        // Platform collisions for mushroom
+        for (Platform platform : platforms) {
+            if (p.intersects(i, platform.x, platform.y, platform.width, platform.height)) {
+                if (p.velY[i] > 0 && p.y[i] < platform.y) {
+                    p.y[i] = platform.y - p.height[i];
+                    p.velY[i] = 0;
+                } else if (platform.oneWay) {
+                    continue;
+                } else if (p.velX[i] > 0 && p.x[i] < platform.x) {
+                    p.x[i] = platform.x - p.width[i];
+                    p.velX[i] = -p.velX[i];
+                } else if (p.velX[i] < 0 && p.x[i] > platform.x) {
+                    p.x[i] = platform.x + platform.width;
+                    p.velX[i] = -p.velX[i];
+                }
             }
         }
     }
 
-    private void handlePlatformCollision(Player player, Platform platform) {
+    private void handlePlatformCollision(Player player, Platform platform, int index) {
         double playerBottom = player.y + player.height;
         double playerRight = player.x + player.width;
         double platformBottom = platform.y + platform.height;
@@ -362,10 +1309,19 @@ public class MarioGameEnhanced extends Application {
 
         double minOverlap = Math.min(Math.min(overlapLeft, overlapRight), Math.min(overlapTop, overlapBottom));
 
-        if (minOverlap == overlapTop && player.velY >= 0) {
+        boolean landing = minOverlap == overlapTop && player.velY >= 0;
+        if (platform.oneWay) {
+            // Only the top face is solid: land only if the feet were above it before this frame's move
+            landing = player.velY >= 0 && playerBottom - player.velY <= platform.y - platform.dy + 1;
+        }
+
+        if (landing) {
             player.y = platform.y - player.height;
             player.velY = 0;
             player.onGround = true;
+            player.support = index;
+        } else if (platform.oneWay) {
+            return;
         } else if (minOverlap == overlapBottom && player.velY < 0) {
             player.y = platform.y + platform.height;
             player.velY = 1;
@@ -378,59 +1334,765 @@ public class MarioGameEnhanced extends Application {
         }
     }
 
-    private void updateCamera() {
+    private void updateCamera(double deltaTime) {
         double targetCameraX = player.x - GAME_WIDTH / 3;
-        cameraX += (targetCameraX - cameraX) * 0.1;
+        // Closes 10% of the gap per 60 Hz frame, scaled so any frame rate follows the same curve
+        double follow = 1 - Math.pow(1 - CAMERA_FOLLOW_PER_FRAME, deltaTime * 60);
+        cameraX += (targetCameraX - cameraX) * follow;
         if (cameraX < 0) cameraX = 0;
     }
 
     private void addScoreParticle(double x, double y, String text) {
-        particles.add(new ScoreParticle(x, y, text));
+        if (particles.size() < quality.particleCap()) {
+            particles.add(new ScoreParticle(x, y, text));
+        }
     }
 
     private void addHitParticle(double x, double y) {
-        particles.add(new HitParticle(x, y));
+        // Purely decorative, so these go before score popups do
+        if (quality.drawDecorations() && particles.size() < quality.particleCap()) {
+            particles.add(new HitParticle(x, y));
+        }
     }
 
     private void restartGame() {
         gameOver = false;
-        levelComplete = false;
         lives = 3;
         score = 0;
         cameraX = 0;
-        gameTimer = GAME_TIME_LIMIT;
-        player.reset();
-        player.powerState = PowerState.SMALL;
-        enemies.clear();
-        coins.clear();
-        powerUps.clear();
-        particles.clear();
-        fireballs.clear();
-
-        // Reset question blocks
-        for (QuestionBlock block : questionBlocks) {
-            block.reset();
-        }
+        fireKeyPressed = false;
+        scoreSubmitted = false;
 
-        createLevel();
+        // Rebuild the whole world so blocks, terrain and entities come back exactly once
+        initializeGame();
     }
 
-    private void render() {
-        // Clear screen with sky blue
-        gc.setFill(Color.LIGHTBLUE);
-        gc.fillRect(0, 0, GAME_WIDTH, GAME_HEIGHT);
+    private void autosave(double deltaTime) {
+        autosaveTimer -= deltaTime;
+        if (autosaveTimer > 0 || saveFile == null) return;
+        autosaveTimer = AUTOSAVE_INTERVAL;
+        saveGame();
+    }
 
-        gc.save();
-        gc.translate(-cameraX, 0);
+    // Encoding is a handful of bulk copies on this thread; the file is written on the save thread.
+    // A save requested while the previous one is still being written is skipped.
+    private Future<?> saveGame() {
+        if (!saveInFlight.compareAndSet(false, true)) return CompletableFuture.completedFuture(null);
+        ByteBuffer state = encodeState();
+        Path path = saveFile;
+        return SAVE_WRITER.submit(() -> {
+            try {
+                SaveFile.write(path, state);
+            } catch (IOException e) {
+                System.err.println("Failed to save game: " + e.getMessage());
+            } finally {
+                saveInFlight.set(false);
+            }
+        });
+    }
 
-        // Draw platforms
-        for (Platform platform : platforms) {
-            platform.draw(gc);
+    private void loadGame() {
+        try {
+            loadState(SaveFile.read(saveFile));
+            autosaveTimer = AUTOSAVE_INTERVAL;
+        } catch (IOException e) {
+            System.err.println("Failed to load saved game: " + e.getMessage());
         }
+    }
 
-        // Draw pipes
-        for (Pipe pipe : pipes) {
-            pipe.draw(gc);
+    // The whole game as a save body, flipped and ready to write. The buffer is reused between saves.
+    ByteBuffer encodeState() {
+        int size = stateSize();
+        if (saveBuffer.capacity() < size) {
+            saveBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) * 2);
+        }
+        saveBuffer.clear();
+        writeState(saveBuffer);
+        saveBuffer.flip();
+        return saveBuffer;
+    }
+
+    // Upper bound on writeState's output
+    private int stateSize() {
+        return 256 + terrain.moverCount * 72 + questionBlocks.size() * 16 + fireballs.size() * 40 +
+                enemies.byteSize() + coins.byteSize() + powerUps.byteSize();
+    }
+
+    // Save body, version 1. Particles are cosmetic and not saved. Kinematic platforms, used blocks and
+    // contact caches are matched on load by where they sit, so saves survive a level file being reordered.
+    private void writeState(ByteBuffer out) {
+        out.putInt(world).putInt(level).putInt(levelDefinition.fingerprint());
+        out.putInt(score).putInt(lives);
+        out.putDouble(gameTimer).putDouble(cameraX).putDouble(animationTime);
+        out.put((byte) (fireKeyPressed ? 1 : 0));
+
+        Player p = player;
+        out.putDouble(p.x).putDouble(p.y).putDouble(p.velX).putDouble(p.velY);
+        out.putDouble(p.width).putDouble(p.height).putDouble(p.startX).putDouble(p.startY);
+        out.putDouble(p.invincibilityTimer).putDouble(p.jumpBufferTime);
+        out.put((byte) ((p.onGround ? 1 : 0) | (p.running ? 2 : 0) | (p.facingRight ? 4 : 0) | (p.jumpRequested ? 8 : 0)));
+        out.put((byte) p.powerState.ordinal());
+        out.putInt(p.support);
+
+        TerrainIndex t = terrain;
+        out.putInt(t.moverCount);
+        for (int m = 0; m < t.moverCount; m++) {
+            Platform platform = platforms.get(t.movers[m]);
+            out.putDouble(platform.originX).putDouble(platform.originY);
+            out.putDouble(platform.x).putDouble(platform.y).putDouble(platform.dx).putDouble(platform.dy);
+            out.putDouble(platform.elapsed).putDouble(platform.fallTimer).putDouble(platform.fallSpeed);
+        }
+
+        int usedAt = out.position();
+        out.putInt(0);
+        int used = 0;
+        for (QuestionBlock block : questionBlocks) {
+            if (block.isUsed()) {
+                out.putDouble(block.x).putDouble(block.y);
+                used++;
+            }
+        }
+        out.putInt(usedAt, used);
+
+        out.putInt(fireballs.size());
+        for (Fireball fireball : fireballs) {
+            out.putDouble(fireball.x).putDouble(fireball.y).putDouble(fireball.velX).putDouble(fireball.velY);
+            out.putDouble(fireball.lifeTime);
+        }
+
+        enemies.write(out);
+        coins.write(out);
+        powerUps.write(out);
+    }
+
+    // Rebuilds the saved level from its definition, then overwrites everything that has changed since.
+    // The whole body is decoded against a level that is not yet installed, so a bad save changes nothing.
+    void loadState(ByteBuffer in) throws IOException {
+        try {
+            int savedWorld = in.getInt(), savedLevel = in.getInt(), fingerprint = in.getInt();
+            boolean sameLevel = levelDefinition != null && savedWorld == world && savedLevel == level;
+            LevelDefinition def = sameLevel ? levelDefinition : loadLevelDefinition(savedWorld, savedLevel);
+            if (def.fingerprint() != fingerprint) {
+                throw new IOException("Level " + savedWorld + "-" + savedLevel + " has changed since the save");
+            }
+            PreparedLevel prepared = prepareLevel(savedWorld, savedLevel, def);
+
+            int savedScore = in.getInt();
+            int savedLives = in.getInt();
+            double savedTimer = in.getDouble();
+            double savedCameraX = in.getDouble();
+            double savedAnimationTime = in.getDouble();
+            boolean savedFireKey = in.get() != 0;
+
+            Player p = new Player(0, 0);
+            p.x = in.getDouble();
+            p.y = in.getDouble();
+            p.velX = in.getDouble();
+            p.velY = in.getDouble();
+            p.width = in.getDouble();
+            p.height = in.getDouble();
+            p.startX = in.getDouble();
+            p.startY = in.getDouble();
+            p.invincibilityTimer = in.getDouble();
+            p.jumpBufferTime = in.getDouble();
+            int flags = in.get();
+            p.onGround = (flags & 1) != 0;
+            p.running = (flags & 2) != 0;
+            p.facingRight = (flags & 4) != 0;
+            p.jumpRequested = (flags & 8) != 0;
+            p.powerState = POWER_STATES[in.get()];
+            p.support = in.getInt();
+
+            TerrainIndex t = prepared.terrain;
+            int movers = in.getInt();
+            for (int k = 0; k < movers; k++) {
+                double originX = in.getDouble(), originY = in.getDouble();
+                int index = -1;
+                for (int m = 0; m < t.moverCount && index < 0; m++) {
+                    Platform candidate = prepared.platforms.get(t.movers[m]);
+                    if (candidate.originX == originX && candidate.originY == originY) index = t.movers[m];
+                }
+                if (index < 0) throw new IOException("Saved platform at (" + originX + ", " + originY + ") not found");
+                Platform platform = prepared.platforms.get(index);
+                platform.x = in.getDouble();
+                platform.y = in.getDouble();
+                platform.dx = in.getDouble();
+                platform.dy = in.getDouble();
+                platform.elapsed = in.getDouble();
+                platform.fallTimer = in.getDouble();
+                platform.fallSpeed = in.getDouble();
+                t.sync(index, platform);
+            }
+
+            int used = in.getInt();
+            for (int k = 0; k < used; k++) {
+                double x = in.getDouble(), y = in.getDouble();
+                for (QuestionBlock block : prepared.questionBlocks) {
+                    if (block.x == x && block.y == y) block.hit();
+                }
+            }
+
+            List<Fireball> savedFireballs = new ArrayList<>();
+            int fireballCount = in.getInt();
+            for (int k = 0; k < fireballCount; k++) {
+                Fireball fireball = new Fireball(in.getDouble(), in.getDouble(), true);
+                fireball.velX = in.getDouble();
+                fireball.velY = in.getDouble();
+                fireball.lifeTime = in.getDouble();
+                savedFireballs.add(fireball);
+            }
+
+            EntityStore e = prepared.enemies;
+            e.read(in);
+            prepared.coins.read(in);
+            EntityStore savedPowerUps = new EntityStore(16);
+            savedPowerUps.read(in);
+
+            // Contact caches were saved as indices into the saving game's platform list, which hot
+            // reload may have reordered: find the platform by where the feet are instead
+            p.support = playerSupportAt(p, t, p.support);
+            for (int i = 0; i < e.count; i++) {
+                e.support[i] = enemySupportAt(e.x[i] + e.width[i] / 2, e.y[i] + e.height[i], t, e.support[i]);
+            }
+
+            if (!sameLevel) nextLevel = null; // the preload was for the level after this one
+            installLevel(prepared);
+            score = savedScore;
+            lives = savedLives;
+            gameTimer = savedTimer;
+            cameraX = savedCameraX;
+            animationTime = savedAnimationTime;
+            fireKeyPressed = savedFireKey;
+            gameOver = false;
+            levelComplete = false;
+            scoreSubmitted = false;
+            player = p;
+            fireballs = savedFireballs;
+            particles.clear();
+            powerUps = savedPowerUps;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated save", e);
+        }
+    }
+
+    // The platform the player's feet rest on, as the contact cache tests it: the saved index while it
+    // still fits, since platforms can overlap, otherwise the last one there. -1 stays -1.
+    private static int playerSupportAt(Player p, TerrainIndex t, int saved) {
+        if (saved < 0) return -1;
+        if (saved < t.count && playerRestsOn(p, t, saved)) return saved;
+        int support = -1;
+        for (int i = 0; i < t.count; i++) {
+            if (playerRestsOn(p, t, i)) support = i;
+        }
+        return support;
+    }
+
+    private static boolean playerRestsOn(Player p, TerrainIndex t, int i) {
+        return p.x < t.x[i] + t.width[i] && p.x + p.width > t.x[i] &&
+                Math.abs(p.y + p.height - t.y[i]) <= Player.SUPPORT_TOLERANCE;
+    }
+
+    // The same for an enemy, with the tolerance updateEnemies uses
+    private static int enemySupportAt(double cx, double footY, TerrainIndex t, int saved) {
+        if (saved < 0) return -1;
+        if (saved < t.count && CollisionKernel.supports(cx, footY, 5, t.x, t.y, t.width, saved)) return saved;
+        return CollisionKernel.supportIndex(cx, footY, 5, t.x, t.y, t.width, t.count);
+    }
+
+    // Built on first use and shared: layers are immutable and headless simulations never draw
+    private static synchronized List<ParallaxLayer> parallaxLayers() {
+        if (parallaxLayers == null) {
+            parallaxLayers = ParallaxLayer.createDefaultLayers();
+        }
+        return parallaxLayers;
+    }
+
+    // One INPUT_* mask per line, as --fuzz writes them
+    private static int[] readInputs(Path file) {
+        try {
+            return Files.readAllLines(file).stream()
+                    .filter(line -> !line.isBlank())
+                    .mapToInt(line -> Integer.parseInt(line.trim()))
+                    .toArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Offline audio: --mix-audio <out.wav> [frames] [inputs]. Plays the game headless with the same
+    // inputs as --export-frames and mixes one frame's worth of sound after each update.
+    private static void mixAudio(String[] args) {
+        Path target = Paths.get(args[1]);
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 600;
+        int[] inputs = args.length > 3 ? readInputs(Paths.get(args[3])) : null;
+
+        MarioGameEnhanced game = new MarioGameEnhanced();
+        game.restartGame();
+        game.audio = AudioMixer.offline();
+        int frameSamples = (int) Math.round(AudioMixer.SAMPLE_RATE * GameEnvironment.STEP_TIME);
+        byte[] pcm = new byte[frames * frameSamples * 2];
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            int input = inputs != null ? (frame < inputs.length ? inputs[frame] : 0)
+                    : INPUT_RIGHT | (frame % 40 < 20 ? INPUT_JUMP : 0);
+            if (!game.gameOver && !game.levelComplete) {
+                game.update(GameEnvironment.STEP_TIME, input);
+            }
+            game.audio.render(pcm, frame * frameSamples * 2, frameSamples);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        try {
+            AudioMixer.writeWav(target, pcm);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.printf("Mixed %.1fs of audio in %.2fs%n", frames * GameEnvironment.STEP_TIME, seconds);
+    }
+
+    // Headless replay capture: --export-frames <dir|file> <frames> [png|raw] [input-file]
+    // The input file holds one INPUT_* mask per line; without it a run-and-jump demo is played.
+    private static void exportFrames(String[] args) {
+        Path target = Paths.get(args[1]);
+        int frames = Integer.parseInt(args[2]);
+        FrameExporter.Format format = args.length > 3 && args[3].equalsIgnoreCase("raw")
+                ? FrameExporter.Format.RAW : FrameExporter.Format.PNG;
+
+        int[] inputs = args.length > 4 ? readInputs(Paths.get(args[4])) : null;
+
+        MarioGameEnhanced game = new MarioGameEnhanced();
+        game.restartGame();
+        SoftwareSurface surface = new SoftwareSurface(GAME_WIDTH, GAME_HEIGHT);
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        try (FrameExporter exporter = new FrameExporter(target, format, GAME_WIDTH, GAME_HEIGHT, threads)) {
+            for (int frame = 0; frame < frames; frame++) {
+                int input;
+                if (inputs != null) {
+                    input = frame < inputs.length ? inputs[frame] : 0;
+                } else {
+                    input = INPUT_RIGHT | (frame % 40 < 20 ? INPUT_JUMP : 0);
+                }
+                if (!game.gameOver && !game.levelComplete) {
+                    game.update(GameEnvironment.STEP_TIME, input);
+                }
+                game.render(surface);
+                exporter.submit(surface.pixels);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Exported %d frames in %.2fs (%.1fx real time)%n",
+                frames, seconds, frames * GameEnvironment.STEP_TIME / seconds);
+    }
+
+    // Plays one input stream through the double and the fixed-point physics with extra goombas on the
+    // ground. The fixed run is made twice; its final state hash must match, here and on any other JVM.
+    private static void benchPhysics(int frames, int goombas) {
+        int[] inputs = new int[frames];
+        SplittableRandom random = new SplittableRandom(11);
+        for (int i = 0; i < frames; i++) {
+            inputs[i] = INPUT_RIGHT | (random.nextInt(4) == 0 ? INPUT_JUMP : 0) | random.nextInt(2) * INPUT_RUN;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            MarioGameEnhanced doubles = new MarioGameEnhanced(false);
+            MarioGameEnhanced fixed = new MarioGameEnhanced(true);
+            MarioGameEnhanced replay = new MarioGameEnhanced(true);
+            double doubleNanos = runPhysics(doubles, inputs, goombas);
+            double fixedNanos = runPhysics(fixed, inputs, goombas);
+            runPhysics(replay, inputs, goombas);
+            System.out.printf("round %d: double %.1f us/frame, fixed %.1f us/frame (%.2fx), state hash %08x, replay %08x%n",
+                    round, doubleNanos / 1e3, fixedNanos / 1e3, doubleNanos / fixedNanos,
+                    fixed.physicsStateHash(), replay.physicsStateHash());
+        }
+    }
+
+    // Shell contacts in a crowd: the sort-and-sweep against the collision world's grid and a nested
+    // scan over the same enemies, checking all three mark the same ones. Then the crowd is played
+    // through level 1-1 with every hundredth enemy a kicked shell, in both physics modes.
+    private static void benchEnemies(int count) {
+        SplittableRandom random = new SplittableRandom(17);
+        EntityStore crowd = new EntityStore(count);
+        addCrowd(crowd, count, 20_000, random);
+        int n = crowd.count;
+        int shell = EnemyKind.SHELL.ordinal();
+
+        ShellSweep sweep = new ShellSweep();
+        boolean[] gridHit = new boolean[n], scanHit = new boolean[n];
+        CollisionWorld world = new CollisionWorld(TILE_SIZE * 2);
+        world.register(CollisionLayer.ENEMY, CollisionLayer.ENEMY, (a, b) -> {
+            if (crowd.kind[a] == shell && crowd.velX[a] != 0) gridHit[b] = true;
+            if (crowd.kind[b] == shell && crowd.velX[b] != 0) gridHit[a] = true;
+        });
+
+        int passes = 20;
+        for (int round = 0; round < 5; round++) {
+            int swept = 0;
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                swept = sweep.sweep(crowd);
+            }
+            long sweepNanos = (System.nanoTime() - start) / passes;
+
+            start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                Arrays.fill(gridHit, false);
+                world.begin();
+                world.beginLayer(CollisionLayer.ENEMY);
+                for (int i = 0; i < n; i++) {
+                    world.add(crowd.x[i], crowd.y[i], crowd.width[i], crowd.height[i]);
+                }
+                world.collide();
+            }
+            long gridNanos = (System.nanoTime() - start) / passes;
+
+            start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                Arrays.fill(scanHit, false);
+                for (int s = 0; s < n; s++) {
+                    if (crowd.kind[s] != shell || crowd.velX[s] == 0) continue;
+                    for (int j = 0; j < n; j++) {
+                        if (j != s && crowd.intersects(j, crowd.x[s], crowd.y[s], crowd.width[s], crowd.height[s])) {
+                            scanHit[j] = true;
+                        }
+                    }
+                }
+            }
+            long scanNanos = (System.nanoTime() - start) / passes;
+
+            boolean same = true;
+            for (int i = 0; i < n; i++) {
+                same &= sweep.isHit(i) == gridHit[i] && gridHit[i] == scanHit[i];
+            }
+            System.out.printf("n=%d round %d: sweep %.0f us, grid %.0f us, nested %.0f us per pass; %d marked, %s%n",
+                    n, round, sweepNanos / 1e3, gridNanos / 1e3, scanNanos / 1e3, swept, same ? "all agree" : "MISMATCH");
+        }
+
+        for (boolean fixedPoint : new boolean[] { false, true }) {
+            MarioGameEnhanced game = new MarioGameEnhanced(fixedPoint);
+            game.restartGame();
+            addCrowd(game.enemies, count, 1_300, new SplittableRandom(17));
+            int frames = 0;
+            long start = System.nanoTime();
+            while (frames < 300 && !game.gameOver && !game.levelComplete) {
+                game.update(GameEnvironment.STEP_TIME, 0);
+                frames++;
+            }
+            double nanos = (System.nanoTime() - start) / (double) Math.max(frames, 1);
+            System.out.printf("%s: %.1f us/frame over %d frames, %d of %d enemies left%n",
+                    fixedPoint ? "fixed" : "double", nanos / 1e3, frames, game.enemies.count, count);
+        }
+    }
+
+    // Goombas and koopas on the ground from x 150, one in a hundred a shell already kicked
+    private static void addCrowd(EntityStore enemies, int count, double spread, SplittableRandom random) {
+        double ground = GAME_HEIGHT - TILE_SIZE;
+        for (int i = 0; i < count; i++) {
+            double x = 150 + random.nextDouble() * spread;
+            int roll = random.nextInt(100);
+            if (roll == 0) {
+                enemies.add(x, ground - 24, 24, 24, EnemyKind.SHELL.ordinal(),
+                        random.nextBoolean() ? SHELL_SPEED : -SHELL_SPEED, 0);
+            } else if (roll < 30) {
+                addKoopa(enemies, x, ground - 32);
+            } else {
+                addGoomba(enemies, x, ground - 24);
+            }
+        }
+    }
+
+    // Save/load round trip: times encoding, writing, reading and loading a mid-level game, then checks
+    // that the loaded copy re-encodes to the same bytes and plays on identically
+    private static void benchSave(int goombas) {
+        SplittableRandom random = new SplittableRandom(5);
+        int[] inputs = new int[600];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = INPUT_RIGHT | (random.nextInt(4) == 0 ? INPUT_JUMP : 0) | random.nextInt(2) * INPUT_RUN;
+        }
+        MarioGameEnhanced game = new MarioGameEnhanced(true);
+        runPhysics(game, Arrays.copyOf(inputs, 300), goombas);
+        MarioGameEnhanced copy = new MarioGameEnhanced(true);
+        copy.restartGame();
+
+        try {
+            Path file = Files.createTempFile("mario-bench", ".sav");
+            for (int round = 0; round < 5; round++) {
+                long t0 = System.nanoTime();
+                ByteBuffer state = game.encodeState();
+                long t1 = System.nanoTime();
+                SaveFile.write(file, state);
+                long t2 = System.nanoTime();
+                ByteBuffer body = SaveFile.read(file);
+                long t3 = System.nanoTime();
+                copy.loadState(body);
+                long t4 = System.nanoTime();
+                System.out.printf("round %d: %,d bytes, encode %.0f us, write %.0f us, read %.0f us, load %.0f us%n",
+                        round, state.remaining(), (t1 - t0) / 1e3, (t2 - t1) / 1e3, (t3 - t2) / 1e3, (t4 - t3) / 1e3);
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        boolean same = game.encodeState().equals(copy.encodeState());
+        for (int i = 300; i < inputs.length; i++) {
+            game.update(GameEnvironment.STEP_TIME, inputs[i]);
+            copy.update(GameEnvironment.STEP_TIME, inputs[i]);
+        }
+        System.out.printf("re-encoded state %s; after %d more frames: %08x vs %08x%n", same ? "identical" : "DIFFERS",
+                inputs.length - 300, game.physicsStateHash(), copy.physicsStateHash());
+    }
+
+    // Average nanoseconds per update until the inputs run out or the run ends
+    private static double runPhysics(MarioGameEnhanced game, int[] inputs, int goombas) {
+        game.restartGame();
+        for (int i = 0; i < goombas; i++) {
+            addGoomba(game.enemies, 150 + (i * 37) % 1300, GAME_HEIGHT - TILE_SIZE - 24);
+        }
+        int frame = 0;
+        long start = System.nanoTime();
+        while (frame < inputs.length && !game.gameOver && !game.levelComplete) {
+            game.update(GameEnvironment.STEP_TIME, inputs[frame++]);
+        }
+        return (System.nanoTime() - start) / (double) Math.max(frame, 1);
+    }
+
+    private int physicsStateHash() {
+        FixedPhysics physics = fixedPhysics != null ? fixedPhysics : new FixedPhysics();
+        ByteBuffer state = ByteBuffer.allocate(physics.snapshotSize());
+        physics.snapshot(state);
+        CRC32 crc = new CRC32();
+        crc.update(state.array(), 0, state.position());
+        return (int) crc.getValue();
+    }
+
+    // Completability check: --solve [W-L ...] [SMALL|BIG|FIRE]. Without levels, every level file is
+    // solved in play order. Fails if a level can't be finished in time or a question block can't be hit.
+    private static boolean solveLevels(String[] args) {
+        List<int[]> levels = new ArrayList<>();
+        PowerState power = PowerState.SMALL;
+        for (String arg : args) {
+            if (arg.matches("\\d+-\\d+")) {
+                String[] parts = arg.split("-");
+                levels.add(new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) });
+            } else {
+                power = PowerState.valueOf(arg.toUpperCase());
+            }
+        }
+        if (levels.isEmpty()) {
+            int world = 1, level = 1;
+            do {
+                levels.add(new int[] { world, level });
+                world = level < LEVELS_PER_WORLD ? world : world + 1;
+                level = level < LEVELS_PER_WORLD ? level + 1 : 1;
+            } while (Files.exists(levelPath(world, level)));
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean ok = true;
+        for (int[] wl : levels) {
+            long start = System.nanoTime();
+            LevelSolver solver = new LevelSolver(wl[0], wl[1], loadLevelDefinition(wl[0], wl[1]), power, threads);
+            LevelSolver.Result result = solver.solve();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            if (result.frames < 0) {
+                ok = false;
+                System.out.printf("%d-%d: cannot be finished within %.0fs (%,d states, %.2fs on %d threads)%n",
+                        wl[0], wl[1], GAME_TIME_LIMIT, result.states, seconds, threads);
+            } else {
+                System.out.printf("%d-%d: finished in %.2fs of %.0fs (%d frames, %,d states, %.2fs on %d threads)%n",
+                        wl[0], wl[1], result.frames * GameEnvironment.STEP_TIME, GAME_TIME_LIMIT, result.frames,
+                        result.states, seconds, threads);
+                System.out.println("  route: " + describeRoute(result.route));
+            }
+            for (QuestionBlock block : result.unreachableBlocks) {
+                ok = false;
+                System.out.printf("  unreachable %s block at (%.0f, %.0f)%n", block.powerUpType, block.x, block.y);
+            }
+            for (double[] coin : result.unreachableCoins) {
+                System.out.printf("  unreachable coin at (%.0f, %.0f)%n", coin[0], coin[1]);
+            }
+        }
+        return ok;
+    }
+
+    // Physics fuzzing: --fuzz [seconds] [threads] [trace-dir]. Each failing invariant's shrunk trace is
+    // written one input per line, so --export-frames can replay it (with the same -Dmario.physics).
+    private static boolean fuzz(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 30;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path traceDir = Paths.get(args.length > 2 ? args[2] : "fuzz");
+        boolean fixedPoint = "fixed".equalsIgnoreCase(System.getProperty("mario.physics"));
+
+        PhysicsFuzzer fuzzer = new PhysicsFuzzer(fixedPoint);
+        long start = System.nanoTime();
+        List<PhysicsFuzzer.Failure> failures = fuzzer.run(threads, seconds, System.nanoTime());
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s physics: %,d ticks in %,d traces over %.1fs on %d threads (%,.0f ticks/s), corpus %d%n",
+                fixedPoint ? "fixed" : "double", fuzzer.ticks(), fuzzer.traces(), elapsed, threads,
+                fuzzer.ticks() / elapsed, fuzzer.corpusSize());
+
+        for (PhysicsFuzzer.Failure failure : failures) {
+            Path file = traceDir.resolve(failure.invariant + ".trace");
+            try {
+                Files.createDirectories(traceDir);
+                Files.write(file, Arrays.stream(failure.trace).mapToObj(Integer::toString).collect(Collectors.toList()));
+            } catch (IOException e) {
+                System.err.println("Failed to write " + file + ": " + e.getMessage());
+            }
+            List<Integer> inputs = Arrays.stream(failure.trace).boxed().collect(Collectors.toList());
+            System.out.println(failure.detail);
+            System.out.println("  " + failure.trace.length + " ticks (" + file + "): " + describeRoute(inputs));
+        }
+        return failures.isEmpty();
+    }
+
+    // Run-length encoded, one step per held action, e.g. "R+run x12, R+jump+run x3"
+    private static String describeRoute(List<Integer> route) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < route.size(); ) {
+            int input = route.get(i);
+            int run = 1;
+            while (i + run < route.size() && route.get(i + run) == input) run++;
+            if (out.length() > 0) out.append(", ");
+            out.append((input & INPUT_LEFT) != 0 ? "L" : (input & INPUT_RIGHT) != 0 ? "R" : "-");
+            if ((input & INPUT_JUMP) != 0) out.append("+jump");
+            if ((input & INPUT_RUN) != 0) out.append("+run");
+            if ((input & INPUT_FIRE) != 0) out.append("+fire");
+            out.append(" x").append(run);
+            i += run;
+        }
+        return out.toString();
+    }
+
+    // Adds heatmap files (or directories of them) into the same-named files in the output directory and
+    // summarises each level. Files are decoded in parallel; maps for the same level merge as they arrive.
+    private static void mergeHeatmaps(Path outDir, String[] inputs) {
+        List<Path> files = new ArrayList<>();
+        for (String input : inputs) {
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                try (DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.heat")) {
+                    dir.forEach(files::add);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+
+        Map<String, Heatmap> levels = new ConcurrentHashMap<>();
+        files.parallelStream().forEach(file -> {
+            Heatmap map;
+            try {
+                map = Heatmap.read(file);
+            } catch (IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                return;
+            }
+            levels.merge(file.getFileName().toString(), map, (a, b) -> {
+                if (a.columns >= b.columns && a.rows >= b.rows) {
+                    a.merge(b);
+                    return a;
+                }
+                Heatmap grown = new Heatmap(Math.max(a.columns, b.columns), Math.max(a.rows, b.rows));
+                grown.merge(a);
+                grown.merge(b);
+                return grown;
+            });
+        });
+
+        for (Map.Entry<String, Heatmap> entry : new TreeMap<>(levels).entrySet()) {
+            Heatmap map = entry.getValue();
+            try {
+                map.mergeInto(outDir.resolve(entry.getKey()));
+            } catch (IOException e) {
+                System.err.println("Failed to write " + entry.getKey() + ": " + e.getMessage());
+            }
+            StringBuilder line = new StringBuilder(String.format("%s: %,d sessions", entry.getKey(), map.sessions()));
+            for (int event = 0; event < Heatmap.EVENTS; event++) {
+                long total = 0, hottest = 0;
+                int hotColumn = 0, hotRow = 0;
+                for (int row = 0; row < map.rows; row++) {
+                    for (int column = 0; column < map.columns; column++) {
+                        long n = map.count(event, column, row);
+                        total += n;
+                        if (n > hottest) {
+                            hottest = n;
+                            hotColumn = column;
+                            hotRow = row;
+                        }
+                    }
+                }
+                line.append(String.format(", %s %,d", Heatmap.EVENT_NAMES[event], total));
+                if (hottest > 0) line.append(String.format(" (most at tile %d,%d)", hotColumn, hotRow));
+            }
+            System.out.println(line);
+        }
+    }
+
+    // Visual regression check: compares same-named PNG frames in two directories
+    private static boolean diffFrames(Path expectedDir, Path actualDir) {
+        boolean identical = true;
+        try (DirectoryStream<Path> expectedFrames = Files.newDirectoryStream(expectedDir, "*.png")) {
+            for (Path expected : expectedFrames) {
+                Path actual = actualDir.resolve(expected.getFileName());
+                if (!Files.exists(actual)) {
+                    System.out.println(expected.getFileName() + ": missing");
+                    identical = false;
+                    continue;
+                }
+                BufferedImage a = ImageIO.read(expected.toFile());
+                BufferedImage b = ImageIO.read(actual.toFile());
+                if (a == null || b == null) {
+                    // ImageIO returns null rather than throwing for files it has no reader for
+                    System.out.println(expected.getFileName() + ": unreadable " + (a == null ? "expected" : "actual") + " frame");
+                    identical = false;
+                    continue;
+                }
+                int w = a.getWidth(), h = a.getHeight();
+                if (w != b.getWidth() || h != b.getHeight()) {
+                    System.out.println(expected.getFileName() + ": size differs");
+                    identical = false;
+                    continue;
+                }
+                int differing = SoftwareSurface.countDifferentPixels(
+                        a.getRGB(0, 0, w, h, null, 0, w), b.getRGB(0, 0, w, h, null, 0, w));
+                if (differing > 0) {
+                    System.out.println(expected.getFileName() + ": " + differing + " pixels differ");
+                    identical = false;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return identical;
+    }
+
+    private void render(Surface gc) {
+        // Clear screen with sky blue
+        gc.setFill(Color.LIGHTBLUE);
+        gc.fillRect(0, 0, GAME_WIDTH, GAME_HEIGHT);
+
+        // Background layers, far to near
+        for (ParallaxLayer layer : parallaxLayers()) {
+            layer.draw(gc, cameraX);
+        }
+
+        gc.save();
+        gc.translate(-cameraX, 0);
+
+        // Draw platforms
+        for (Platform platform : platforms) {
+            platform.draw(gc);
+        }
+
+        // Draw pipes
+        for (Pipe pipe : pipes) {
+            pipe.draw(gc);
         }
 
         // Draw question blocks
@@ -439,19 +2101,13 @@ public class MarioGameEnhanced extends Application {
         }
 
         // Draw power-ups
-        for (PowerUp powerUp : powerUps) {
-            powerUp.draw(gc);
-        }
+        drawPowerUps(gc);
 
         // Draw enemies
-        for (Enemy enemy : enemies) {
-            enemy.draw(gc);
-        }
+        drawEnemies(gc);
 
         // Draw coins
-        for (Coin coin : coins) {
-            coin.draw(gc);
-        }
+        drawCoins(gc);
 
         // Draw fireballs
         for (Fireball fireball : fireballs) {
@@ -466,20 +2122,169 @@ public class MarioGameEnhanced extends Application {
         // Draw player
         player.draw(gc);
 
+        if (heatmapOverlay >= 0 && heatmap != null) {
+            heatmap.draw(gc, heatmapOverlay, loadedHeatmapHistory());
+        }
+
         gc.restore();
 
         // Draw UI
-        drawUI();
+        drawUI(gc);
+    }
+
+    private void drawEnemies(Surface gc) {
+        EntityStore e = enemies;
+        int stride = quality.animationStride();
+        for (int i = 0; i < e.count; i++) {
+            double x = e.x[i], y = e.y[i], width = e.width[i], height = e.height[i];
+            if (!isOnScreen(x, width)) continue;
+            if (e.kind[i] == EnemyKind.KOOPA.ordinal()) {
+                drawKoopa(gc, i, stride);
+                continue;
+            } else if (e.kind[i] == EnemyKind.SHELL.ordinal()) {
+                drawShell(gc, x, y, width, height);
+                continue;
+            } else if (e.kind[i] == EnemyKind.PIRANHA.ordinal()) {
+                if (height > 0) drawPiranha(gc, x, y, width, height);
+                continue;
+            }
+
+            // Feet swap back and forth as it walks
+            double step = Animation.GOOMBA_WALK.sample(animationTime, e.phase[i], stride);
+            gc.setFill(Color.SADDLEBROWN);
+            gc.fillOval(x + 1 + step, y + height - 6, 9, 6);
+            gc.fillOval(x + width - 10 - step, y + height - 6, 9, 6);
+
+            // Goomba
+            gc.setFill(Color.BROWN);
+            gc.fillOval(x, y, width, height);
+            gc.setFill(Color.BLACK);
+            gc.fillOval(x + 2, y + 2, width - 4, height - 4);
+            if (!quality.drawSpriteDetail()) continue;
+
+            // Eyes
+            gc.setFill(Color.BLACK);
+            gc.fillOval(x + 6, y + 6, 4, 4);
+            gc.fillOval(x + 14, y + 6, 4, 4);
+
+            // Frown
+            gc.strokeLine(x + 8, y + 16, x + 16, y + 16);
+        }
+    }
+
+    private void drawKoopa(Surface gc, int i, int stride) {
+        EntityStore e = enemies;
+        double x = e.x[i], y = e.y[i], width = e.width[i], height = e.height[i];
+        boolean right = e.velX[i] > 0;
+
+        // Feet, then the shell over them and the head out front
+        double step = Animation.GOOMBA_WALK.sample(animationTime, e.phase[i], stride);
+        gc.setFill(Color.YELLOW);
+        gc.fillOval(x + 2 + step, y + height - 6, 8, 6);
+        gc.fillOval(x + width - 10 - step, y + height - 6, 8, 6);
+        drawShell(gc, x, y + height - 28, width, 22);
+        double headX = right ? x + width - 10 : x - 2;
+        gc.setFill(Color.YELLOW);
+        gc.fillOval(headX, y, 12, 12);
+        if (!quality.drawSpriteDetail()) return;
+
+        // Eye
+        gc.setFill(Color.BLACK);
+        gc.fillOval(right ? headX + 6 : headX + 2, y + 3, 3, 4);
+    }
+
+    private void drawShell(Surface gc, double x, double y, double width, double height) {
+        gc.setFill(Color.GREEN);
+        gc.fillOval(x, y, width, height);
+        gc.setFill(Color.WHITE);
+        gc.fillRect(x + 2, y + height - 6, width - 4, 3);
+        if (!quality.drawSpriteDetail()) return;
+
+        // Plates
+        gc.setFill(Color.DARKGREEN);
+        gc.fillRect(x + width / 2 - 1, y + 2, 2, height - 9);
+        gc.fillRect(x + 4, y + height / 2 - 3, width - 8, 2);
+    }
+
+    // Only the part above the pipe top exists, so a rising plant is drawn from its head down
+    private void drawPiranha(Surface gc, double x, double y, double width, double height) {
+        gc.setFill(Color.GREEN);
+        gc.fillRect(x + width / 2 - 3, y + 12, 6, Math.max(height - 12, 0));
+        gc.setFill(Color.RED);
+        gc.fillOval(x, y, width, Math.min(height, 18));
+        if (!quality.drawSpriteDetail() || height < 18) return;
+
+        // Spots and lips
+        gc.setFill(Color.WHITE);
+        gc.fillOval(x + 4, y + 3, 4, 4);
+        gc.fillOval(x + 15, y + 5, 4, 4);
+        gc.fillRect(x + 3, y + 8, width - 6, 2);
+    }
+
+    private void drawCoins(Surface gc) {
+        EntityStore c = coins;
+        int stride = quality.animationStride();
+        for (int i = 0; i < c.count; i++) {
+            double x = c.x[i], y = c.y[i], width = c.width[i], height = c.height[i];
+            if (!isOnScreen(x, width)) continue;
+            double scale = Animation.COIN_SPIN.sample(animationTime, c.phase[i], stride);
+
+            gc.setFill(Color.GOLD);
+            gc.fillOval(x + width * (1 - scale) / 2, y, width * scale, height);
+
+            gc.setFill(Color.ORANGE);
+            gc.fillOval(x + width * (1 - scale) / 2 + 2, y + 2, (width - 4) * scale, height - 4);
+        }
+    }
+
+    // Horizontal cull against the camera, for entities drawn in world space
+    private boolean isOnScreen(double x, double width) {
+        return x + width >= cameraX && x <= cameraX + GAME_WIDTH;
+    }
+
+    private void drawPowerUps(Surface gc) {
+        EntityStore p = powerUps;
+        for (int i = 0; i < p.count; i++) {
+            double x = p.x[i], y = p.y[i], width = p.width[i], height = p.height[i];
+            switch (POWER_UP_TYPES[p.kind[i]]) {
+                case MUSHROOM:
+                    // Mushroom cap
+                    gc.setFill(Color.RED);
+                    gc.fillOval(x, y, width, height * 0.6);
+                    // White spots
+                    gc.setFill(Color.WHITE);
+                    gc.fillOval(x + 4, y + 4, 4, 4);
+                    gc.fillOval(x + 14, y + 8, 4, 4);
+                    // Stem
+                    gc.setFill(Color.BEIGE);
+                    gc.fillRect(x + width/3, y + height * 0.4, width/3, height * 0.6);
+                    break;
+                case FIRE_FLOWER:
+                    // Stem
+                    gc.setFill(Color.GREEN);
+                    gc.fillRect(x + width/2 - 2, y + height/2, 4, height/2);
+                    // Petals
+                    gc.setFill(Color.RED);
+                    gc.fillOval(x + 4, y + 4, 8, 8);
+                    gc.fillOval(x + 12, y + 4, 8, 8);
+                    gc.fillOval(x + 8, y, 8, 8);
+                    gc.fillOval(x + 8, y + 8, 8, 8);
+                    // Center
+                    gc.setFill(Color.YELLOW);
+                    gc.fillOval(x + 8, y + 4, 8, 8);
+                    break;
+            }
+        }
     }
 
-    private void drawUI() {
-        gc.setFont(Font.font("Arial", FontWeight.BOLD, 16));
+    private void drawUI(Surface gc) {
+        gc.setFont(FontWeight.BOLD, 16);
         gc.setFill(Color.WHITE);
         gc.fillText("MARIO", 20, 30);
         gc.fillText(String.format("%06d", score), 20, 50);
 
         gc.fillText("WORLD", 200, 30);
-        gc.fillText("1-" + level, 200, 50);
+        gc.fillText(world + "-" + level, 200, 50);
 
         gc.fillText("TIME", 300, 30);
         gc.fillText(String.format("%03d", (int)Math.ceil(gameTimer)), 300, 50);
@@ -495,674 +2300,4437 @@ public class MarioGameEnhanced extends Application {
         }
         gc.fillText(powerText, 500, 30);
 
+        if (heatmapOverlay >= 0) {
+            gc.fillText("HEATMAP: " + Heatmap.EVENT_NAMES[heatmapOverlay].toUpperCase(), 500, 50);
+        }
+
         // Instructions
-        gc.setFont(Font.font("Arial", FontWeight.NORMAL, 12));
+        gc.setFont(FontWeight.NORMAL, 12);
         gc.fillText("Jump into question blocks from below to hit them!", 20, GAME_HEIGHT - 20);
 
         if (levelComplete) {
-            gc.setFont(Font.font("Arial", FontWeight.BOLD, 48));
+            gc.setFont(FontWeight.BOLD, 48);
             gc.setFill(Color.GREEN);
             gc.fillText("CONGRATULATIONS!", GAME_WIDTH/2 - 180, GAME_HEIGHT/2 - 40);
-            gc.setFont(Font.font("Arial", FontWeight.BOLD, 24));
+            gc.setFont(FontWeight.BOLD, 24);
             gc.setFill(Color.WHITE);
             gc.fillText("Level Complete! Press R to restart", GAME_WIDTH/2 - 120, GAME_HEIGHT/2);
         } else if (gameOver) {
-            gc.setFont(Font.font("Arial", FontWeight.BOLD, 48));
+            gc.setFont(FontWeight.BOLD, 48);
             gc.setFill(Color.RED);
             gc.fillText("GAME OVER", GAME_WIDTH/2 - 120, GAME_HEIGHT/2);
-            gc.setFont(Font.font("Arial", FontWeight.BOLD, 20));
+            gc.setFont(FontWeight.BOLD, 20);
             gc.setFill(Color.WHITE);
             if (gameTimer <= 0) {
                 gc.fillText("TIME'S UP!", GAME_WIDTH/2 - 45, GAME_HEIGHT/2 - 60);
             }
             gc.fillText("Press R to restart", GAME_WIDTH/2 - 70, GAME_HEIGHT/2 + 30);
         }
+
+        if (gameOver || levelComplete) {
+            drawHighScores(gc);
+        }
+    }
+
+    private void drawHighScores(Surface gc) {
+        if (highScores.isEmpty()) return;
+
+        gc.setFont(FontWeight.BOLD, 16);
+        gc.setFill(Color.YELLOW);
+        gc.fillText("HIGH SCORES", GAME_WIDTH/2 - 55, GAME_HEIGHT/2 + 70);
+        gc.setFill(Color.WHITE);
+        int shown = Math.min(highScores.size(), 5);
+        for (int i = 0; i < shown; i++) {
+            Leaderboard.Entry entry = highScores.get(i);
+            gc.fillText(String.format("%d. %-10s %06d", i + 1, entry.name, entry.score),
+                    GAME_WIDTH/2 - 110, GAME_HEIGHT/2 + 95 + i * 20);
+        }
     }
 
     // Enums
     enum PowerState { SMALL, BIG, FIRE }
     enum PowerUpType { MUSHROOM, FIRE_FLOWER, STAR, COIN }
     enum PlatformType { GROUND, BRICK, PIPE }
+    enum PlatformMotion { STATIC, MOVING, FALLING }
+    enum EnemyKind { GOOMBA, KOOPA, SHELL, PIRANHA }
+    enum CollisionLayer { PLAYER, ENEMY, FIREBALL, BLOCK, POWER_UP, COIN }
 
-    // Fireball class
-    class Fireball {
-        double x, y, velX, velY;
-        double width = 8, height = 8;
-        boolean dead = false;
-        double lifeTime = 5.0;
+    // Called with each collider's index inside its own layer (list or store index)
+    interface CollisionHandler {
+        void onContact(int a, int b);
+    }
 
-        public Fireball(double x, double y, boolean facingRight) {
-            this.x = x;
-            this.y = y;
-            this.velX = facingRight ? 6 : -6;
-            this.velY = -2;
+    // Collision world: one uniform-grid broadphase over the moving layers per frame. Only layer
+    // pairs with a registered handler are ever tested, and contacts are dispatched in
+    // handler registration order, then by collider order within each layer.
+    static class CollisionWorld {
+        private static final CollisionLayer[] LAYERS = CollisionLayer.values();
+        private static final int MAX_COLLIDERS = 1 << 24;
+
+        private final double cellSize;
+        // pairRank[a][b] > 0 when the pair is enabled; it is 1 + the handler's registration index
+        private final int[][] pairRank = new int[LAYERS.length][LAYERS.length];
+        private final List<CollisionHandler> handlers = new ArrayList<>();
+        private final List<CollisionLayer> handlerFirstLayer = new ArrayList<>();
+
+        private final int[] layerBase = new int[LAYERS.length];
+        private final int[] layerEnd = new int[LAYERS.length];
+        private int currentLayer = -1;
+        private int count = 0;
+        private int[] layer = new int[256];
+        private double[] x = new double[256], y = new double[256], width = new double[256], height = new double[256];
+        private boolean[] retired = new boolean[256];
+
+        private long[] cellEntries = new long[512];
+        private long[] pairs = new long[256];
+
+        CollisionWorld(double cellSize) {
+            this.cellSize = cellSize;
         }
 
-        public void update(double deltaTime) {
-            x += velX;
-            y += velY;
-            velY += 0.2;
+        void register(CollisionLayer a, CollisionLayer b, CollisionHandler handler) {
+            int rank = handlers.size() + 1;
+            handlers.add(handler);
+            handlerFirstLayer.add(a);
+            pairRank[a.ordinal()][b.ordinal()] = rank;
+            pairRank[b.ordinal()][a.ordinal()] = rank;
+        }
 
-            for (Platform platform : platforms) {
-                if (intersects(platform)) {
-                    if (velY > 0 && y < platform.y) {
-                        y = platform.y - height;
-                        velY = -4;
+        boolean isEnabled(CollisionLayer a, CollisionLayer b) {
+            return pairRank[a.ordinal()][b.ordinal()] > 0;
+        }
+
+        // True if any handler tests the layer; a layer nobody tests need not be filled
+        boolean isEnabled(CollisionLayer l) {
+            for (int rank : pairRank[l.ordinal()]) {
+                if (rank > 0) return true;
+            }
+            return false;
+        }
+
+        void begin() {
+            count = 0;
+            currentLayer = -1;
+            Arrays.fill(layerBase, 0);
+            Arrays.fill(layerEnd, 0);
+        }
+
+        // Layers must be filled one after another so (layer, index) maps to a single id
+        void beginLayer(CollisionLayer l) {
+            currentLayer = l.ordinal();
+            layerBase[currentLayer] = count;
+            layerEnd[currentLayer] = count;
+        }
+
+        void add(double x, double y, double width, double height) {
+            if (count == layer.length) {
+                grow();
+            }
+            if (count >= MAX_COLLIDERS) {
+                throw new IllegalStateException("Too many colliders: " + count);
+            }
+            int id = count++;
+            this.layer[id] = currentLayer;
+            this.x[id] = x;
+            this.y[id] = y;
+            this.width[id] = width;
+            this.height[id] = height;
+            this.retired[id] = false;
+            layerEnd[currentLayer] = count;
+        }
+
+        // Retired colliders take part in no further contacts this pass
+        void retire(CollisionLayer l, int index) {
+            retired[layerBase[l.ordinal()] + index] = true;
+        }
+
+        boolean isRetired(CollisionLayer l, int index) {
+            int id = layerBase[l.ordinal()] + index;
+            return id < layerEnd[l.ordinal()] && retired[id];
+        }
+
+        void collide() {
+            int pairCount = findPairs();
+            for (int p = 0; p < pairCount; p++) {
+                long key = pairs[p];
+                int rank = (int) (key >>> 48);
+                int a = (int) ((key >>> 24) & 0xFFFFFF);
+                int b = (int) (key & 0xFFFFFF);
+                if (retired[a] || retired[b]) continue;
+                handlers.get(rank - 1).onContact(a - layerBase[layer[a]], b - layerBase[layer[b]]);
+            }
+        }
+
+        // Broadphase: bucket every collider into grid cells, then test only enabled pairs sharing a cell.
+        // Pairs are encoded as rank | first id | second id so a sort gives both dedupe and dispatch order.
+        private int findPairs() {
+            int entries = 0;
+            for (int id = 0; id < count; id++) {
+                int x0 = cell(x[id]), x1 = cell(x[id] + width[id]);
+                int y0 = cell(y[id]), y1 = cell(y[id] + height[id]);
+                for (int cx = x0; cx <= x1; cx++) {
+                    for (int cy = y0; cy <= y1; cy++) {
+                        if (entries == cellEntries.length) {
+                            cellEntries = Arrays.copyOf(cellEntries, entries * 2);
+                        }
+                        long cellKey = ((long) (cx & 0xFFFFF) << 12) | (cy & 0xFFF);
+                        cellEntries[entries++] = (cellKey << 32) | id;
+                    }
+                }
+            }
+            Arrays.sort(cellEntries, 0, entries);
+
+            int pairCount = 0;
+            int start = 0;
+            while (start < entries) {
+                long cellKey = cellEntries[start] >>> 32;
+                int end = start + 1;
+                while (end < entries && (cellEntries[end] >>> 32) == cellKey) end++;
+
+                for (int i = start; i < end; i++) {
+                    int a = (int) cellEntries[i];
+                    int[] ranks = pairRank[layer[a]];
+                    for (int j = i + 1; j < end; j++) {
+                        int b = (int) cellEntries[j];
+                        int rank = ranks[layer[b]];
+                        if (rank == 0 || !overlaps(a, b)) continue;
+
+                        // Order the pair as the handler was registered
+                        int first = a, second = b;
+                        if (layer[a] != layer[b] && handlerFirstLayer.get(rank - 1).ordinal() != layer[a]) {
+                            first = b;
+                            second = a;
+                        } else if (layer[a] == layer[b] && b < a) {
+                            first = b;
+                            second = a;
+                        }
+                        if (pairCount == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, pairCount * 2);
+                        }
+                        pairs[pairCount++] = ((long) rank << 48) | ((long) first << 24) | second;
                     }
                 }
+                start = end;
             }
 
-            lifeTime -= deltaTime;
-            if (lifeTime <= 0 || x < -100 || x > 2000) {
-                dead = true;
+            Arrays.sort(pairs, 0, pairCount);
+            int unique = 0;
+            for (int i = 0; i < pairCount; i++) {
+                if (unique == 0 || pairs[unique - 1] != pairs[i]) {
+                    pairs[unique++] = pairs[i];
+                }
             }
+            return unique;
         }
 
-        public boolean intersects(Platform platform) {
-            return x < platform.x + platform.width &&
-                    x + width > platform.x &&
-                    y < platform.y + platform.height &&
-                    y + height > platform.y;
+        private boolean overlaps(int a, int b) {
+            return x[a] < x[b] + width[b] &&
+                    x[a] + width[a] > x[b] &&
+                    y[a] < y[b] + height[b] &&
+                    y[a] + height[a] > y[b];
         }
 
-        public boolean intersects(Enemy enemy) {
-            return x < enemy.x + enemy.width &&
-                    x + width > enemy.x &&
-                    y < enemy.y + enemy.height &&
-                    y + height > enemy.y;
+        private int cell(double v) {
+            return (int) Math.floor(v / cellSize);
         }
 
-        public boolean isDead() { return dead; }
-        public void setDead() { dead = true; }
-
-        public void draw(GraphicsContext gc) {
-            gc.setFill(Color.ORANGE);
-            gc.fillOval(x, y, width, height);
-            gc.setFill(Color.RED);
-            gc.fillOval(x + 1, y + 1, width - 2, height - 2);
+        private void grow() {
+            int n = layer.length * 2;
+            layer = Arrays.copyOf(layer, n);
+            x = Arrays.copyOf(x, n);
+            y = Arrays.copyOf(y, n);
+            width = Arrays.copyOf(width, n);
+            height = Arrays.copyOf(height, n);
+            retired = Arrays.copyOf(retired, n);
         }
     }
 
-    // Player class with slower movement
-    class Player {
-        double x, y, velX, velY;
-        double width = 24, height = 32;
-        boolean onGround = false;
-        boolean running = false;
-        PowerState powerState = PowerState.SMALL;
-        double startX, startY;
-        private double invincibilityTimer = 0;
-        boolean facingRight = true;
-        private boolean jumpRequested = false;
-        private double jumpBufferTime = 0;
-        private static final double JUMP_BUFFER_DURATION = 0.1;
+    // ShellSweep class: sort-and-sweep for the one enemy-vs-enemy contact, moving shells against the
+    // crowd. Enemies are sorted by x once per frame and each moving shell binary-searches the span it
+    // covers, so the cost is n log n plus the pairs actually near a shell. Registering enemy-vs-enemy
+    // in the collision world would instead test every pair of walkers sharing a cell.
+    static class ShellSweep {
+        private long[] order = new long[16]; // floor(x) << 32 | index, sorted
+        private boolean[] hit = new boolean[16];
+
+        // Marks every enemy a moving shell overlaps, shells included; returns how many were marked
+        int sweep(EntityStore e) {
+            int n = e.count;
+            boolean moving = false;
+            for (int i = 0; i < n && !moving; i++) {
+                moving = e.kind[i] == EnemyKind.SHELL.ordinal() && e.velX[i] != 0;
+            }
+            if (!moving) return 0;
 
-        public Player(double x, double y) {
-            this.x = x;
-            this.y = y;
-            this.startX = x;
-            this.startY = y;
+            if (order.length < n) {
+                order = new long[e.x.length];
+                hit = new boolean[e.x.length];
+            }
+            double maxWidth = 0;
+            for (int i = 0; i < n; i++) {
+                order[i] = ((long) Math.floor(e.x[i]) << 32) | i;
+                maxWidth = Math.max(maxWidth, e.width[i]);
+            }
+            Arrays.sort(order, 0, n);
+            Arrays.fill(hit, 0, n, false);
+
+            // Positions are read before anything is marked, so the result doesn't depend on shell order
+            int marked = 0;
+            for (int s = 0; s < n; s++) {
+                if (e.kind[s] != EnemyKind.SHELL.ordinal() || e.velX[s] == 0) continue;
+                double sx = e.x[s], sy = e.y[s], sw = e.width[s], sh = e.height[s];
+                // Anything overlapping starts right of sx - maxWidth and left of sx + sw
+                for (int k = lowerBound(n, (long) Math.floor(sx - maxWidth) << 32); k < n; k++) {
+                    if ((order[k] >> 32) >= sx + sw) break;
+                    int j = (int) order[k];
+                    if (j == s || hit[j] || e.height[j] <= 0 || !e.intersects(j, sx, sy, sw, sh)) continue;
+                    hit[j] = true;
+                    marked++;
+                }
+            }
+            return marked;
         }
 
-        public void update(double deltaTime) {
-            if (invincibilityTimer > 0) {
-                invincibilityTimer -= deltaTime;
-            }
+        boolean isHit(int i) {
+            return hit[i];
+        }
 
-            if (jumpBufferTime > 0) {
-                jumpBufferTime -= deltaTime;
+        private int lowerBound(int n, long key) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (order[mid] < key) lo = mid + 1; else hi = mid;
             }
+            return lo;
+        }
+    }
 
-            if (!onGround) {
-                velY += GRAVITY;
-                if (velY > 12) velY = 12;
+    private static final PowerUpType[] POWER_UP_TYPES = PowerUpType.values();
+    private static final EnemyKind[] ENEMY_KINDS = EnemyKind.values();
+    private static final PowerState[] POWER_STATES = PowerState.values();
+
+    // Terrain index: platform boxes packed into flat arrays, index-aligned with the platforms list.
+    // Kinematic platforms are also listed in movers so a frame only touches the ones that move.
+    static class TerrainIndex {
+        int count = 0;
+        double[] x = new double[0], y = new double[0], width = new double[0], height = new double[0];
+        int moverCount = 0;
+        int[] movers = new int[0];
+        int version = 0; // bumped whenever boxes are added or removed
+
+        void rebuild(List<Platform> platforms) {
+            version++;
+            count = platforms.size();
+            moverCount = 0;
+            if (x.length < count) {
+                x = new double[count];
+                y = new double[count];
+                width = new double[count];
+                height = new double[count];
+            }
+            for (int i = 0; i < count; i++) {
+                Platform platform = platforms.get(i);
+                x[i] = platform.x;
+                y[i] = platform.y;
+                width[i] = platform.width;
+                height[i] = platform.height;
+                if (platform.motion != PlatformMotion.STATIC) {
+                    addMover(i);
+                }
             }
+        }
 
-            x += velX;
-            y += velY;
+        // Copies a kinematic platform's new position back into the packed arrays
+        void sync(int i, Platform platform) {
+            x[i] = platform.x;
+            y[i] = platform.y;
+        }
 
-            onGround = false;
+        void add(Platform platform) {
+            version++;
+            if (count == x.length) {
+                int n = Math.max(count * 2, 16);
+                x = Arrays.copyOf(x, n);
+                y = Arrays.copyOf(y, n);
+                width = Arrays.copyOf(width, n);
+                height = Arrays.copyOf(height, n);
+            }
+            x[count] = platform.x;
+            y[count] = platform.y;
+            width[count] = platform.width;
+            height[count] = platform.height;
+            if (platform.motion != PlatformMotion.STATIC) {
+                addMover(count);
+            }
+            count++;
+        }
 
-            if (x < 0) x = 0;
+        // Swap-removal; the caller must do the same to the platforms list
+        void removeAt(int i) {
+            version++;
+            int last = --count;
+            x[i] = x[last];
+            y[i] = y[last];
+            width[i] = width[last];
+            height[i] = height[last];
+            for (int m = 0; m < moverCount; m++) {
+                if (movers[m] == i) {
+                    movers[m--] = movers[--moverCount];
+                } else if (movers[m] == last) {
+                    movers[m] = i;
+                }
+            }
+        }
 
-            if (powerState == PowerState.SMALL) {
-                height = 32;
-                width = 24;
-            } else {
-                height = 48;
-                width = 32;
+        private void addMover(int i) {
+            if (moverCount == movers.length) {
+                movers = Arrays.copyOf(movers, Math.max(moverCount * 2, 8));
             }
+            movers[moverCount++] = i;
         }
+    }
 
-        public void moveLeft() {
-            facingRight = false;
-            double acceleration = running ? 0.15 : 0.1;
-            double maxSpeed = running ? 2.5 : 1.8;
+    // Collision kernel: tests one box against packed candidate arrays in a single
+    // straight-line pass and reports hits as a bitmask (bit i = candidate i)
+    static final class CollisionKernel {
+        // The box-against-candidates test overlapMask runs: a Vector API kernel where one can be loaded,
+        // otherwise the scalar loop below. Both make the same IEEE compares, so they set the same bits.
+        interface Batch {
+            int overlapMask(double bx, double by, double bw, double bh,
+                            double[] xs, double[] ys, double[] ws, double[] hs, int count, long[] mask);
+        }
 
-            if (velX > 0) {
-                velX -= acceleration * 2;
-            } else {
-                velX -= acceleration;
+        static final Batch SCALAR = CollisionKernel::scalarOverlapMask;
+        static final Batch BATCH = loadVectorBatch();
+
+        private CollisionKernel() {}
+
+        // vector/VectorOverlapKernel.java needs the incubator module, so it is built on its own:
+        //   javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorOverlapKernel.java
+        // and used only when the game is also launched with --add-modules jdk.incubator.vector.
+        // -Dmario.kernel=scalar keeps the scalar loop regardless.
+        private static Batch loadVectorBatch() {
+            if ("scalar".equalsIgnoreCase(System.getProperty("mario.kernel"))) return SCALAR;
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return SCALAR;
+            try {
+                return (Batch) Class.forName("VectorOverlapKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return SCALAR;
             }
+        }
 
-            if (velX < -maxSpeed) velX = -maxSpeed;
+        static long[] ensureCapacity(long[] mask, int count) {
+            int words = (count + 63) >>> 6;
+            return mask.length >= words ? mask : new long[Math.max(words, mask.length * 2)];
         }
 
-        public void moveRight() {
-            facingRight = true;
-            double acceleration = running ? 0.15 : 0.1;
-            double maxSpeed = running ? 2.5 : 1.8;
+        // Returns the number of overlapping candidates; candidate bits are written to mask
+        static int overlapMask(double bx, double by, double bw, double bh,
+                               double[] xs, double[] ys, double[] ws, double[] hs,
+                               int count, long[] mask) {
+            return BATCH.overlapMask(bx, by, bw, bh, xs, ys, ws, hs, count, mask);
+        }
 
-            if (velX < 0) {
-                velX += acceleration * 2;
-            } else {
-                velX += acceleration;
+        static int scalarOverlapMask(double bx, double by, double bw, double bh,
+                                     double[] xs, double[] ys, double[] ws, double[] hs,
+                                     int count, long[] mask) {
+            double right = bx + bw;
+            double bottom = by + bh;
+            int hits = 0;
+            for (int base = 0; base < count; base += 64) {
+                int end = Math.min(base + 64, count);
+                long bits = 0;
+                // No short-circuiting: every lane evaluates all four compares, so the
+                // loop body has no data-dependent branches
+                for (int i = base; i < end; i++) {
+                    boolean hit = (xs[i] < right) & (xs[i] + ws[i] > bx) &
+                            (ys[i] < bottom) & (ys[i] + hs[i] > by);
+                    bits |= (hit ? 1L : 0L) << (i - base);
+                }
+                mask[base >>> 6] = bits;
+                hits += Long.bitCount(bits);
             }
-
-            if (velX > maxSpeed) velX = maxSpeed;
+            return hits;
         }
 
-        public void applyMovementFriction() {
-            if (onGround) {
-                velX *= 0.85;
-            } else {
-                velX *= 0.95;
+        // Index of a candidate whose top edge a point standing at (cx, footY) rests on within
+        // tolerance, or -1. With several, the last one wins.
+        static int supportIndex(double cx, double footY, double tolerance,
+                                double[] xs, double[] ys, double[] ws, int count) {
+            int support = -1;
+            for (int i = 0; i < count; i++) {
+                boolean supported = (footY <= ys[i] + tolerance) & (footY >= ys[i] - tolerance) &
+                        (cx >= xs[i]) & (cx <= xs[i] + ws[i]);
+                support = supported ? i : support;
             }
+            return support;
+        }
 
-            if (Math.abs(velX) < 0.1) velX = 0;
+        // The single-candidate form of supportIndex, used to revalidate a cached contact
+        static boolean supports(double cx, double footY, double tolerance, double[] xs, double[] ys, double[] ws, int i) {
+            return footY <= ys[i] + tolerance && footY >= ys[i] - tolerance && cx >= xs[i] && cx <= xs[i] + ws[i];
         }
 
-        public void jump() {
-            jumpRequested = true;
-            jumpBufferTime = JUMP_BUFFER_DURATION;
+        static int firstHit(long[] mask, int count) {
+            return nextHit(mask, -1, count);
+        }
 
-            if (onGround) {
-                performJump();
+        // Lowest set index greater than after, or -1
+        static int nextHit(long[] mask, int after, int count) {
+            int i = after + 1;
+            if (i >= count) return -1;
+            int word = i >>> 6;
+            long bits = mask[word] & (-1L << (i & 63));
+            int words = (count + 63) >>> 6;
+            while (true) {
+                if (bits != 0) {
+                    int hit = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    return hit < count ? hit : -1;
+                }
+                if (++word >= words) return -1;
+                bits = mask[word];
             }
         }
 
-        private void performJump() {
-            if (jumpRequested && (onGround || jumpBufferTime > 0)) {
-                velY = running ? -12 : -9.0;
-                onGround = false;
-                jumpRequested = false;
-                jumpBufferTime = 0;
+        // Highest set index lower than before, or -1
+        static int lastHit(long[] mask, int before) {
+            int i = before - 1;
+            if (i < 0) return -1;
+            int word = i >>> 6;
+            long bits = mask[word] & (-1L >>> (63 - (i & 63)));
+            while (true) {
+                if (bits != 0) {
+                    return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+                }
+                if (--word < 0) return -1;
+                bits = mask[word];
             }
         }
 
-        public void setRunning(boolean running) {
-            this.running = running;
+        // Compares the batch kernels with the short-circuiting per-object test they replaced. The Vector API
+        // kernel is timed, and checked against the scalar one bit for bit, when it was loaded.
+        static void benchmark() {
+            Batch vector = BATCH != SCALAR ? BATCH : null;
+            System.out.println(vector != null ? "vector kernel: " + vector.getClass().getName()
+                    : "vector kernel: not loaded (see CollisionKernel.loadVectorBatch), timing the scalar loop only");
+            java.util.Random random = new java.util.Random(42);
+            for (int n : new int[] { 1_000, 100_000 }) {
+                double[] xs = new double[n], ys = new double[n], ws = new double[n], hs = new double[n];
+                for (int i = 0; i < n; i++) {
+                    xs[i] = random.nextDouble() * 20_000;
+                    ys[i] = random.nextDouble() * GAME_HEIGHT;
+                    ws[i] = 16 + random.nextInt(16);
+                    hs[i] = 16 + random.nextInt(16);
+                }
+                long[] mask = ensureCapacity(new long[1], n);
+                long[] vectorMask = ensureCapacity(new long[1], n);
+                int queries = Math.max(1, 20_000_000 / n);
+                long sink = 0;
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    for (int q = 0; q < queries; q++) {
+                        double bx = (q * 7919) % 20_000;
+                        for (int i = 0; i < n; i++) {
+                            if (xs[i] < bx + 32 && xs[i] + ws[i] > bx && ys[i] < 400 + 32 && ys[i] + hs[i] > 400) {
+                                sink++;
+                            }
+                        }
+                    }
+                    long perObject = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int q = 0; q < queries; q++) {
+                        double bx = (q * 7919) % 20_000;
+                        sink += scalarOverlapMask(bx, 400, 32, 32, xs, ys, ws, hs, n, mask);
+                    }
+                    long scalar = System.nanoTime() - start;
+
+                    double tests = (double) queries * n;
+                    String line = String.format("n=%d round %d: per-object %.3f ns/test, scalar batch %.3f ns/test (%.2fx)",
+                            n, round, perObject / tests, scalar / tests, (double) perObject / scalar);
+                    if (vector != null) {
+                        start = System.nanoTime();
+                        for (int q = 0; q < queries; q++) {
+                            double bx = (q * 7919) % 20_000;
+                            sink += vector.overlapMask(bx, 400, 32, 32, xs, ys, ws, hs, n, vectorMask);
+                        }
+                        long vectorNanos = System.nanoTime() - start;
+                        // The last query's masks, which both kernels wrote in full
+                        boolean same = Arrays.equals(mask, 0, (n + 63) >>> 6, vectorMask, 0, (n + 63) >>> 6);
+                        line += String.format(", vector %.3f ns/test (%.2fx)%s", vectorNanos / tests,
+                                (double) perObject / vectorNanos, same ? "" : ", MISMATCH");
+                    }
+                    System.out.println(line);
+                }
+                System.out.println("checksum " + sink);
+            }
         }
+    }
 
-        public void takeDamage() {
-            if (invincibilityTimer > 0) return;
+    // QualityGovernor class: sheds drawing cost while frames run over budget and restores it
+    // once there is headroom again. Level 0 is full detail; each level up drops more.
+    static class QualityGovernor {
+        static final int MAX_LEVEL = 3;
+        private static final int[] PARTICLE_CAP = { 256, 48, 16, 4 };
+        private static final int[] ANIMATION_STRIDE = { 1, 1, 2, 4 };
+        // Degrade quickly, restore slowly, so the level doesn't oscillate at the budget edge
+        private static final int DEGRADE_AFTER_FRAMES = 15;
+        private static final int RESTORE_AFTER_FRAMES = 180;
+        // Pauses such as window drags say nothing about rendering cost
+        private static final long IGNORE_FRAMES_OVER_NANOS = 250_000_000L;
+
+        private final double budgetNanos;
+        private double averageFrameNanos;
+        private double averageWorkNanos;
+        private int level = 0;
+        private int overBudgetFrames = 0;
+        private int headroomFrames = 0;
+
+        QualityGovernor(int targetFps) {
+            this.budgetNanos = 1_000_000_000.0 / targetFps;
+            this.averageFrameNanos = budgetNanos;
+        }
 
-            if (powerState == PowerState.FIRE) {
-                powerState = PowerState.BIG;
-            } else if (powerState == PowerState.BIG) {
-                powerState = PowerState.SMALL;
+        // frameNanos is the pulse-to-pulse interval; workNanos is the time spent updating and drawing.
+        // With vsync the interval never drops below the budget, so headroom is judged on work time.
+        void recordFrame(long frameNanos, long workNanos) {
+            if (frameNanos <= 0 || frameNanos > IGNORE_FRAMES_OVER_NANOS) return;
+            averageFrameNanos += (frameNanos - averageFrameNanos) * 0.1;
+            averageWorkNanos += (workNanos - averageWorkNanos) * 0.1;
+
+            if (averageFrameNanos > budgetNanos * 1.15) {
+                headroomFrames = 0;
+                if (++overBudgetFrames >= DEGRADE_AFTER_FRAMES && level < MAX_LEVEL) {
+                    level++;
+                    overBudgetFrames = 0;
+                    // Give the cheaper level a fresh window before judging it
+                    averageFrameNanos = budgetNanos;
+                }
             } else {
-                lives--;
-                if (lives > 0) {
-                    reset();
+                overBudgetFrames = 0;
+                if (averageWorkNanos < budgetNanos * 0.5) {
+                    if (++headroomFrames >= RESTORE_AFTER_FRAMES && level > 0) {
+                        level--;
+                        headroomFrames = 0;
+                    }
                 } else {
-                    gameOver = true;
+                    headroomFrames = 0;
                 }
             }
-            invincibilityTimer = 2.0;
         }
 
-        public void collectPowerUp(PowerUpType type) {
-            switch (type) {
-                case MUSHROOM:
-                    if (powerState == PowerState.SMALL) {
-                        powerState = PowerState.BIG;
-                    }
-                    break;
-                case FIRE_FLOWER:
-                    powerState = PowerState.FIRE;
-                    break;
-                case STAR:
-                    invincibilityTimer = 10.0;
-                    break;
-            }
+        int level() {
+            return level;
         }
 
-        public boolean isInvincible() {
-            return invincibilityTimer > 0;
+        int particleCap() {
+            return PARTICLE_CAP[level];
         }
 
-        public void reset() {
-            x = startX;
-            y = startY;
-            velX = 0;
-            velY = 0;
-            invincibilityTimer = 2.0;
+        // Brick joints, pipe seams, hit sparks
+        boolean drawDecorations() {
+            return level < 1;
         }
 
-        public boolean intersects(GameObject obj) {
-            return x < obj.x + obj.width &&
-                    x + width > obj.x &&
-                    y < obj.y + obj.height &&
-                    y + height > obj.y;
+        boolean drawOutlines() {
+            return level < 2;
         }
 
-        public void draw(GraphicsContext gc) {
-            if (invincibilityTimer > 0 && ((int)(invincibilityTimer * 10) % 2 == 0)) {
-                return;
-            }
+        // Faces and other small features on sprites
+        boolean drawSpriteDetail() {
+            return level < 3;
+        }
 
-            Color bodyColor = powerState == PowerState.FIRE ? Color.WHITE : Color.RED;
-            Color overallColor = Color.BLUE;
+        // Animations advance only every Nth frame of their table
+        int animationStride() {
+            return ANIMATION_STRIDE[level];
+        }
+    }
 
-            gc.setFill(bodyColor);
-            gc.fillRect(x + 2, y + height/2, width - 4, height/2);
+    // EngineMetrics class: live engine counters served in the Prometheus text format from a loopback
+    // HTTP endpoint. The game thread only does single-writer stores into atomics once per frame; the
+    // server thread reads them (and the JVM's GC and allocation counters) when scraped, so a scrape
+    // never waits on the game loop or the other way round.
+    static class EngineMetrics implements AutoCloseable {
+        // Frame interval histogram bucket bounds, in seconds
+        private static final double[] FRAME_BUCKETS = { 0.004, 0.008, 0.0167, 0.025, 0.0334, 0.05, 0.1, 0.25 };
+        private static final String[] ENTITY_LISTS = { "enemies", "particles", "fireballs", "platforms", "coins", "power_ups" };
+
+        private final AtomicLongArray frameBuckets = new AtomicLongArray(FRAME_BUCKETS.length + 1);
+        private final AtomicLong frameNanosSum = new AtomicLong();
+        private final AtomicLong workNanosSum = new AtomicLong();
+        private final AtomicLong ticks = new AtomicLong();
+        private final AtomicLongArray entities = new AtomicLongArray(ENTITY_LISTS.length);
+        private final AtomicLong qualityLevel = new AtomicLong();
+        private final long gameThreadId;
+        private final HttpServer server;
+
+        private EngineMetrics(HttpServer server, long gameThreadId) {
+            this.server = server;
+            this.gameThreadId = gameThreadId;
+        }
 
-            gc.setFill(overallColor);
-            gc.fillRect(x + 4, y + height/2 + 2, width - 8, height/2 - 4);
+        // Serves /metrics on 127.0.0.1:port from its own daemon thread; called on the game thread
+        static EngineMetrics start(int port) throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            EngineMetrics metrics = new EngineMetrics(server, Thread.currentThread().getId());
+            server.createContext("/metrics", metrics::handle);
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-server");
+                t.setDaemon(true);
+                return t;
+            }));
+            server.start();
+            return metrics;
+        }
 
-            gc.setFill(Color.PEACHPUFF);
-            gc.fillOval(x, y, width, height/2 + 4);
+        // Game thread, once per frame. Each value has this thread as its only writer, so plain
+        // read-then-lazySet is enough and never contends with a scrape.
+        void recordFrame(long frameNanos, long workNanos, boolean ticked) {
+            double seconds = frameNanos / 1e9;
+            int bucket = 0;
+            while (bucket < FRAME_BUCKETS.length && seconds > FRAME_BUCKETS[bucket]) bucket++;
+            frameBuckets.lazySet(bucket, frameBuckets.get(bucket) + 1);
+            frameNanosSum.lazySet(frameNanosSum.get() + frameNanos);
+            workNanosSum.lazySet(workNanosSum.get() + workNanos);
+            if (ticked) ticks.lazySet(ticks.get() + 1);
+        }
 
-            gc.setFill(Color.RED);
-            gc.fillOval(x + 2, y, width - 4, height/4);
+        // Game thread; sizes in ENTITY_LISTS order
+        void recordEntities(int enemies, int particles, int fireballs, int platforms, int coins, int powerUps, int quality) {
+            entities.lazySet(0, enemies);
+            entities.lazySet(1, particles);
+            entities.lazySet(2, fireballs);
+            entities.lazySet(3, platforms);
+            entities.lazySet(4, coins);
+            entities.lazySet(5, powerUps);
+            qualityLevel.lazySet(quality);
+        }
 
-            gc.setFill(Color.BLACK);
-            double eyeSize = powerState == PowerState.SMALL ? 3 : 4;
-            gc.fillOval(x + width/4, y + height/6, eyeSize, eyeSize);
-            gc.fillOval(x + 3*width/4 - eyeSize, y + height/6, eyeSize, eyeSize);
+        @Override
+        public void close() {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
 
-            gc.setFill(Color.BROWN);
-            gc.fillRect(x + width/3, y + height/3, width/3, 3);
+        private void handle(HttpExchange exchange) throws IOException {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
         }
-    }
 
-    // GameObject base class
-    abstract class GameObject {
-        double x, y, width, height;
+        String render() {
+            StringBuilder out = new StringBuilder(2048);
+            out.append("# HELP mario_frame_seconds Interval between rendered frames.\n");
+            out.append("# TYPE mario_frame_seconds histogram\n");
+            long cumulative = 0;
+            for (int b = 0; b <= FRAME_BUCKETS.length; b++) {
+                cumulative += frameBuckets.get(b);
+                String bound = b < FRAME_BUCKETS.length ? Double.toString(FRAME_BUCKETS[b]) : "+Inf";
+                out.append("mario_frame_seconds_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("mario_frame_seconds_sum ").append(frameNanosSum.get() / 1e9).append('\n');
+            // The count is the +Inf bucket from the same reads, so a scrape landing mid-frame stays consistent
+            out.append("mario_frame_seconds_count ").append(cumulative).append('\n');
 
-        public GameObject(double x, double y, double width, double height)
-        {
-            this.x = x;
-            this.y = y;
-            this.width = width;
-            this.height = height;
+            counter(out, "mario_frame_work_seconds_total", "Time spent updating and drawing frames.", workNanosSum.get() / 1e9);
+            counter(out, "mario_simulation_ticks_total", "Simulation updates run; rate() gives ticks per second.", ticks.get());
+
+            out.append("# HELP mario_entities Live entities per list.\n");
+            out.append("# TYPE mario_entities gauge\n");
+            for (int i = 0; i < ENTITY_LISTS.length; i++) {
+                out.append("mario_entities{list=\"").append(ENTITY_LISTS[i]).append("\"} ").append(entities.get(i)).append('\n');
+            }
+            out.append("# HELP mario_quality_level Current render quality reduction, 0 is full quality.\n");
+            out.append("# TYPE mario_quality_level gauge\n");
+            out.append("mario_quality_level ").append(qualityLevel.get()).append('\n');
+
+            out.append("# HELP jvm_gc_collections_total Garbage collections per collector.\n");
+            out.append("# TYPE jvm_gc_collections_total counter\n");
+            List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+            for (GarbageCollectorMXBean gc : collectors) {
+                out.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ")
+                        .append(Math.max(gc.getCollectionCount(), 0)).append('\n');
+            }
+            out.append("# HELP jvm_gc_collection_seconds_total Time spent in garbage collection per collector.\n");
+            out.append("# TYPE jvm_gc_collection_seconds_total counter\n");
+            for (GarbageCollectorMXBean gc : collectors) {
+                out.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ")
+                        .append(Math.max(gc.getCollectionTime(), 0) / 1e3).append('\n');
+            }
+
+            // Bytes allocated by the game thread; rate() gives the allocation rate. HotSpot only.
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                long allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(gameThreadId);
+                if (allocated >= 0) {
+                    counter(out, "mario_game_thread_allocated_bytes_total", "Bytes allocated by the game thread.", allocated);
+                }
+            }
+            return out.toString();
         }
 
-        public boolean intersects(GameObject other) {
-            return x < other.x + other.width &&
-                    x + width > other.x &&
-                    y < other.y + other.height &&
-                    y + height > other.y;
+        private static void counter(StringBuilder out, String name, String help, double value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(value).append('\n');
         }
 
-        public abstract void draw(GraphicsContext gc);
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
     }
 
-    // Platform class
-    class Platform extends GameObject {
-        PlatformType type;
+    // AudioMixer class: sound effects and a music loop, synthesised once into 16-bit PCM and mixed by a
+    // dedicated thread into a fixed block with preallocated voices. The game thread triggers a sound by
+    // writing its id into a single-producer ring and publishing it with lazySet, so play() never blocks
+    // or allocates; a full ring drops the sound. Offline, the same mixing renders into a buffer instead.
+    static class AudioMixer implements AutoCloseable {
+        static final int SAMPLE_RATE = 44_100;
+        static final int BLOCK_FRAMES = 256; // ~6 ms per block
+        private static final int VOICES = 16;
+        private static final int QUEUE_SIZE = 64; // power of two
+        private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+
+        enum Sound { JUMP, STOMP, COIN, BLOCK, POWER_UP, FIREBALL, DAMAGE }
+
+        private static final short[][] SAMPLES = new short[Sound.values().length][];
+        private static final short[] MUSIC;
+
+        static {
+            SAMPLES[Sound.JUMP.ordinal()] = sweep(300, 700, 0.15, 0.25);
+            SAMPLES[Sound.STOMP.ordinal()] = sweep(220, 60, 0.1, 0.35);
+            SAMPLES[Sound.COIN.ordinal()] = notes(0.07, 0.25, 988, 1319, 1319, 1319);
+            SAMPLES[Sound.BLOCK.ordinal()] = sweep(180, 110, 0.08, 0.35);
+            SAMPLES[Sound.POWER_UP.ordinal()] = notes(0.05, 0.25, 523, 659, 784, 1047, 784, 1047);
+            SAMPLES[Sound.FIREBALL.ordinal()] = sweep(900, 300, 0.08, 0.2);
+            SAMPLES[Sound.DAMAGE.ordinal()] = sweep(600, 150, 0.35, 0.3);
+            MUSIC = notes(0.15, 0.08, 659, 659, 0, 659, 0, 523, 659, 0, 784, 0, 0, 0, 392, 0, 0, 0);
+        }
 
-        public Platform(double x, double y, double width, double height, PlatformType type) {
-            super(x, y, width, height);
-            this.type = type;
+        private final int[] queue = new int[QUEUE_SIZE];
+        private final AtomicLong queueHead = new AtomicLong(); // written by the producer only
+        private final AtomicLong queueTail = new AtomicLong(); // written by the mixer only
+        private final short[][] voiceSample = new short[VOICES][];
+        private final int[] voicePosition = new int[VOICES];
+        private final int[] mix = new int[BLOCK_FRAMES];
+        private int musicPosition = 0;
+        private volatile boolean musicOn = true;
+
+        private final SourceDataLine line; // null when mixing offline
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        private AudioMixer(SourceDataLine line) {
+            this.line = line;
+            if (line == null) {
+                thread = null;
+                return;
+            }
+            thread = new Thread(this::stream, "audio-mixer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
         }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            switch (type) {
-                case GROUND:
-                    gc.setFill(Color.GREEN);
-                    gc.fillRect(x, y, width, height);
-                    gc.setFill(Color.DARKGREEN);
-                    gc.strokeRect(x, y, width, height);
-                    break;
-                case BRICK:
-                    gc.setFill(Color.ORANGE);
-                    gc.fillRect(x, y, width, height);
-                    gc.setFill(Color.DARKORANGE);
-                    gc.strokeRect(x, y, width, height);
-                    // Draw brick pattern
-                    for (int i = 0; i < width; i += 16) {
-                        gc.strokeLine(x + i, y, x + i, y + height);
+        // Plays on the default output; the device buffer holds four blocks, about 23 ms
+        static AudioMixer open() throws LineUnavailableException {
+            SourceDataLine line = AudioSystem.getSourceDataLine(FORMAT);
+            line.open(FORMAT, BLOCK_FRAMES * 2 * 4);
+            line.start();
+            AudioMixer mixer = new AudioMixer(line);
+            mixer.thread.start();
+            return mixer;
+        }
+
+        // Mixes only when render is called, for tests and recordings without a sound device
+        static AudioMixer offline() {
+            return new AudioMixer(null);
+        }
+
+        // Game thread only (one producer)
+        void play(Sound sound) {
+            long head = queueHead.get();
+            if (head - queueTail.get() >= QUEUE_SIZE) return;
+            queue[(int) head & (QUEUE_SIZE - 1)] = sound.ordinal();
+            queueHead.lazySet(head + 1);
+        }
+
+        void setMusic(boolean on) {
+            musicOn = on;
+        }
+
+        boolean musicOn() {
+            return musicOn;
+        }
+
+        // Mixes frames (any number) of little-endian 16-bit mono PCM into out at offset
+        void render(byte[] out, int offset, int frames) {
+            while (frames > 0) {
+                int n = Math.min(frames, BLOCK_FRAMES);
+                mixBlock(out, offset, n);
+                offset += n * 2;
+                frames -= n;
+            }
+        }
+
+        static void writeWav(Path file, byte[] pcm) throws IOException {
+            try (AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), FORMAT, pcm.length / 2)) {
+                AudioSystem.write(in, AudioFileFormat.Type.WAVE, file.toFile());
+            }
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            if (thread != null) {
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                line.stop();
+                line.close();
+            }
+        }
+
+        // Mixer thread: the blocking write to the device paces the loop
+        private void stream() {
+            byte[] out = new byte[BLOCK_FRAMES * 2];
+            while (running) {
+                mixBlock(out, 0, BLOCK_FRAMES);
+                line.write(out, 0, out.length);
+            }
+        }
+
+        private void mixBlock(byte[] out, int offset, int frames) {
+            // Start whatever was triggered since the last block
+            long tail = queueTail.get();
+            long head = queueHead.get();
+            for (; tail < head; tail++) {
+                start(SAMPLES[queue[(int) tail & (QUEUE_SIZE - 1)]]);
+            }
+            queueTail.lazySet(tail);
+
+            Arrays.fill(mix, 0, frames, 0);
+            if (musicOn) {
+                for (int i = 0; i < frames; i++) {
+                    mix[i] += MUSIC[musicPosition];
+                    if (++musicPosition == MUSIC.length) musicPosition = 0;
+                }
+            }
+            for (int v = 0; v < VOICES; v++) {
+                short[] sample = voiceSample[v];
+                if (sample == null) continue;
+                int position = voicePosition[v];
+                int n = Math.min(frames, sample.length - position);
+                for (int i = 0; i < n; i++) {
+                    mix[i] += sample[position + i];
+                }
+                voicePosition[v] = position + n;
+                if (voicePosition[v] == sample.length) voiceSample[v] = null;
+            }
+            for (int i = 0; i < frames; i++) {
+                int value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+                out[offset + i * 2] = (byte) value;
+                out[offset + i * 2 + 1] = (byte) (value >> 8);
+            }
+        }
+
+        // A free voice, or else the one furthest through its sample
+        private void start(short[] sample) {
+            int chosen = 0;
+            for (int v = 0; v < VOICES; v++) {
+                if (voiceSample[v] == null) {
+                    chosen = v;
+                    break;
+                }
+                if (voicePosition[v] > voicePosition[chosen]) chosen = v;
+            }
+            voiceSample[chosen] = sample;
+            voicePosition[chosen] = 0;
+        }
+
+        // Square-wave notes of equal length, each with a linear decay; a 0 frequency is a rest
+        private static short[] notes(double noteSeconds, double volume, double... frequencies) {
+            int noteFrames = (int) (noteSeconds * SAMPLE_RATE);
+            short[] pcm = new short[noteFrames * frequencies.length];
+            for (int n = 0; n < frequencies.length; n++) {
+                if (frequencies[n] == 0) continue;
+                double period = SAMPLE_RATE / frequencies[n];
+                for (int i = 0; i < noteFrames; i++) {
+                    double square = (i % period) < period / 2 ? 1 : -1;
+                    double envelope = 1 - (double) i / noteFrames;
+                    pcm[n * noteFrames + i] = (short) (square * envelope * volume * Short.MAX_VALUE);
+                }
+            }
+            return pcm;
+        }
+
+        // A square wave gliding from one frequency to another, fading out
+        private static short[] sweep(double from, double to, double seconds, double volume) {
+            int frames = (int) (seconds * SAMPLE_RATE);
+            short[] pcm = new short[frames];
+            double phase = 0;
+            for (int i = 0; i < frames; i++) {
+                double t = (double) i / frames;
+                phase += (from + (to - from) * t) / SAMPLE_RATE;
+                double square = phase % 1 < 0.5 ? 1 : -1;
+                pcm[i] = (short) (square * (1 - t) * volume * Short.MAX_VALUE);
+            }
+            return pcm;
+        }
+    }
+
+    // Animation class: a looping table of frame values sampled from the shared animation clock.
+    // Entities keep only a phase offset, so nothing is updated per entity and an animation
+    // costs nothing until the entity is drawn.
+    static final class Animation {
+        // Coin width scale as it spins
+        static final Animation COIN_SPIN = new Animation(10, 1.0, 0.9, 0.7, 0.45, 0.7, 0.9);
+        // Question block brightness
+        static final Animation BLOCK_SHIMMER = new Animation(6, 0.8, 0.9, 1.0, 1.0, 0.9, 0.8, 0.7, 0.6, 0.6, 0.7);
+        // Goomba foot offset in pixels
+        static final Animation GOOMBA_WALK = new Animation(5, 0, 3);
+        // Shoe offset in pixels, indexed by PowerState ordinal
+        static final Animation[] PLAYER_RUN = {
+                new Animation(12, -2, 0, 2, 0),
+                new Animation(10, -3, -1, 1, 3, 1, -1),
+                new Animation(10, -3, -1, 1, 3, 1, -1),
+        };
+        static final Animation[] PLAYER_JUMP = {
+                new Animation(1, -3),
+                new Animation(1, -4),
+                new Animation(1, -4),
+        };
+
+        final double framesPerSecond;
+        final double[] frames;
+
+        Animation(double framesPerSecond, double... frames) {
+            this.framesPerSecond = framesPerSecond;
+            this.frames = frames;
+        }
+
+        // phase is in cycles (0..1); stride > 1 holds each shown frame for that many table frames
+        double sample(double time, double phase, int stride) {
+            long tick = (long) Math.floor(time * framesPerSecond + phase * frames.length);
+            tick -= Math.floorMod(tick, stride);
+            return frames[Math.floorMod(tick, frames.length)];
+        }
+
+        // Stable per-position phase so neighbouring entities don't animate in lockstep
+        static double phaseFor(double x, double y) {
+            long h = Double.doubleToLongBits(x) * 0x9E3779B97F4A7C15L ^ Double.doubleToLongBits(y) * 0xC2B2AE3D27D4EB4FL;
+            return ((h >>> 40) & 0xFFFF) / 65536.0;
+        }
+    }
+
+    // Fixed-point helpers: 16.16 ints. In fixed mode every kinematic value lives on this grid, so the
+    // doubles that carry it between systems round-trip exactly. Coordinates must stay within +/-32767px.
+    static final class Fixed {
+        static final int SHIFT = 16;
+        static final int ONE = 1 << SHIFT;
+        static final double MAX_COORDINATE = Short.MAX_VALUE;
+
+        private Fixed() {}
+
+        static int of(double v) {
+            return (int) Math.round(v * ONE);
+        }
+
+        static double toDouble(int f) {
+            return f / (double) ONE;
+        }
+
+        static int mul(int a, int b) {
+            return (int) (((long) a * b) >> SHIFT);
+        }
+    }
+
+    // Fixed-point physics: the fixed mode's replacement for player movement, terrain resolution and
+    // enemy walking. It follows the same rules as Player, handlePlatformCollision and updateEnemies, but
+    // reads each entity onto the 16.16 grid, steps it in integer math and writes it back, so the
+    // outcome is bit-identical on every JVM and state packs into half the bytes.
+    class FixedPhysics {
+        private final int gravity = Fixed.of(GRAVITY);
+        private final int walkAcceleration = Fixed.of(Player.WALK_ACCELERATION);
+        private final int runAcceleration = Fixed.of(Player.RUN_ACCELERATION);
+        private final int walkMaxSpeed = Fixed.of(Player.WALK_MAX_SPEED);
+        private final int runMaxSpeed = Fixed.of(Player.RUN_MAX_SPEED);
+        private final int groundFriction = Fixed.of(Player.GROUND_FRICTION);
+        private final int airFriction = Fixed.of(Player.AIR_FRICTION);
+        private final int stopSpeed = Fixed.of(Player.STOP_SPEED);
+        private final int jumpSpeed = Fixed.of(Player.JUMP_SPEED);
+        private final int runJumpSpeed = Fixed.of(Player.RUN_JUMP_SPEED);
+        private final int maxFallSpeed = Fixed.of(Player.MAX_FALL_SPEED);
+        private final int jumpCutSpeed = Fixed.of(-2);
+        private final int half = Fixed.ONE / 2;
+        private final int playerTolerance = Fixed.of(Player.SUPPORT_TOLERANCE);
+        private final int enemyTolerance = Fixed.of(5);
+        private final int patrolRange = Fixed.of(200);
+
+        // Terrain on the grid, index-aligned with the terrain index; dx/dy are the last frame's motion
+        private TerrainIndex syncedTerrain;
+        private int syncedVersion;
+        private int count = 0;
+        private int[] tx = new int[0], ty = new int[0], tw = new int[0], th = new int[0];
+        private int[] tdx = new int[0], tdy = new int[0];
+        private boolean[] oneWay = new boolean[0];
+
+        // Static boxes bucketed by 64px column (start offsets plus items); kinematic ones are always
+        // candidates. Lookups return candidates in index order so results match a full scan.
+        private static final int COLUMN_SHIFT = Fixed.SHIFT + 6;
+        private int columns = 0;
+        private int[] columnStart = new int[1], columnItems = new int[0];
+        private int[] candidates = new int[16];
+        private final int skin = Fixed.of(PLAYER_BROADPHASE_SKIN);
+
+        // The player while it is being stepped
+        private int px, py, pw, ph, pvx, pvy;
+
+        // Input, Player.update and the player's terrain contacts, in that order
+        void stepPlayer(int input, double deltaTime) {
+            syncTerrain();
+            Player p = player;
+            px = Fixed.of(p.x);
+            py = Fixed.of(p.y);
+            pvx = Fixed.of(p.velX);
+            pvy = Fixed.of(p.velY);
+
+            boolean left = (input & INPUT_LEFT) != 0;
+            boolean right = (input & INPUT_RIGHT) != 0;
+            if (left != right) {
+                p.facingRight = right;
+                int acceleration = p.running ? runAcceleration : walkAcceleration;
+                int maxSpeed = p.running ? runMaxSpeed : walkMaxSpeed;
+                int direction = right ? 1 : -1;
+                // Turning around brakes twice as hard
+                pvx += direction * (pvx * direction < 0 ? acceleration * 2 : acceleration);
+                if (pvx * direction > maxSpeed) pvx = maxSpeed * direction;
+            } else {
+                pvx = Fixed.mul(pvx, p.onGround ? groundFriction : airFriction);
+                if (Math.abs(pvx) < stopSpeed) pvx = 0;
+            }
+
+            boolean jump = (input & INPUT_JUMP) != 0;
+            if (jump) {
+                p.jumpRequested = true;
+                p.jumpBufferTime = Player.JUMP_BUFFER_DURATION;
+                if (p.onGround) {
+                    pvy = p.running ? -runJumpSpeed : -jumpSpeed;
+                    p.onGround = false;
+                    p.jumpRequested = false;
+                    p.jumpBufferTime = 0;
+                    playSound(AudioMixer.Sound.JUMP);
+                }
+            }
+            if (!jump && pvy < jumpCutSpeed) {
+                pvy = Fixed.mul(pvy, half);
+            }
+            p.setRunning((input & INPUT_RUN) != 0);
+
+            // Grow and shrink around the feet
+            int newHeight = Fixed.of(p.powerState == PowerState.SMALL ? 32 : 48);
+            py += Fixed.of(p.height) - newHeight;
+            p.height = Fixed.toDouble(newHeight);
+            p.width = p.powerState == PowerState.SMALL ? 24 : 32;
+            ph = newHeight;
+            pw = Fixed.of(p.width);
+            p.updateTimers(deltaTime);
+
+            if (!p.onGround) {
+                pvy += gravity;
+                if (pvy > maxFallSpeed) pvy = maxFallSpeed;
+            }
+
+            int s = p.support < count ? p.support : -1;
+            if (s >= 0) {
+                px += tdx[s];
+            }
+            px += pvx;
+            py += pvy;
+            if (px < 0) px = 0;
+
+            // Contact cache, as in Player.update
+            if (s >= 0 && pvy >= 0 && !(px < tx[s] + tw[s] && px + pw > tx[s] &&
+                    Math.abs(py + ph - (ty[s] - tdy[s])) <= playerTolerance)) {
+                s = supportIndex(px + pw / 2, py + ph, playerTolerance);
+            }
+            if (s >= 0 && pvy >= 0) {
+                py = ty[s] - ph;
+                pvy = 0;
+                p.onGround = true;
+            } else {
+                s = -1;
+                p.onGround = false;
+            }
+            p.support = s;
+
+            // What the collision pass resolves in double mode, in the same terrain order. Candidates
+            // are padded like the broadphase box, since resolving one contact moves the player.
+            int n = gather(px - skin, pw + skin * 2);
+            for (int c = 0; c < n; c++) {
+                int i = candidates[c];
+                if (i != p.support && overlaps(px, py, pw, ph, i)) {
+                    resolve(p, i);
+                }
+            }
+
+            p.x = Fixed.toDouble(px);
+            p.y = Fixed.toDouble(py);
+            p.velX = Fixed.toDouble(pvx);
+            p.velY = Fixed.toDouble(pvy);
+        }
+
+        // handlePlatformCollision on the grid
+        private void resolve(Player p, int i) {
+            int overlapLeft = px + pw - tx[i];
+            int overlapRight = tx[i] + tw[i] - px;
+            int overlapTop = py + ph - ty[i];
+            int overlapBottom = ty[i] + th[i] - py;
+            int minOverlap = Math.min(Math.min(overlapLeft, overlapRight), Math.min(overlapTop, overlapBottom));
+
+            boolean landing = minOverlap == overlapTop && pvy >= 0;
+            if (oneWay[i]) {
+                landing = pvy >= 0 && py + ph - pvy <= ty[i] - tdy[i] + Fixed.ONE;
+            }
+
+            if (landing) {
+                py = ty[i] - ph;
+                pvy = 0;
+                p.onGround = true;
+                p.support = i;
+            } else if (oneWay[i]) {
+                return;
+            } else if (minOverlap == overlapBottom && pvy < 0) {
+                py = ty[i] + th[i];
+                pvy = Fixed.ONE;
+            } else if (minOverlap == overlapLeft && pvx > 0) {
+                px = tx[i] - pw;
+                pvx = 0;
+            } else if (minOverlap == overlapRight && pvx < 0) {
+                px = tx[i] + tw[i];
+                pvx = 0;
+            }
+        }
+
+        // updateEnemies on the grid
+        void stepEnemies() {
+            // The level may have changed since the player was stepped
+            syncTerrain();
+            EntityStore e = enemies;
+            for (int i = 0; i < e.count; i++) {
+                if (e.kind[i] == EnemyKind.PIRANHA.ordinal()) {
+                    updatePiranha(i);
+                    continue;
+                }
+                int x = Fixed.of(e.x[i]), y = Fixed.of(e.y[i]);
+                int w = Fixed.of(e.width[i]), h = Fixed.of(e.height[i]);
+                int vx = Fixed.of(e.velX[i]);
+
+                int s = e.support[i] < count ? e.support[i] : -1;
+                if (s >= 0 && platforms.get(s).motion != PlatformMotion.STATIC) {
+                    x += tdx[s];
+                    y = ty[s] - h;
+                }
+                x += vx;
+
+                // Walls are found against the box before any correction, as the batch kernel does
+                int wallX = x;
+                int n = gather(wallX, w);
+                for (int c = 0; c < n; c++) {
+                    int p = candidates[c];
+                    if (p == s || oneWay[p] || !overlaps(wallX, y, w, h, p)) continue;
+                    x = vx > 0 ? tx[p] - w : tx[p] + tw[p];
+                    vx = -vx;
+                }
+
+                int cx = x + w / 2, footY = y + h;
+                if (s < 0 || !supports(cx, footY, enemyTolerance, s)) {
+                    s = supportIndex(cx, footY, enemyTolerance);
+                }
+                e.support[i] = s;
+                if (s < 0) {
+                    vx = -vx;
+                }
+
+                // Kicked shells have no patrol
+                int originX = Fixed.of(e.originX[i]);
+                boolean patrols = e.kind[i] != EnemyKind.SHELL.ordinal();
+                if (patrols && x < originX - patrolRange) {
+                    vx = Math.abs(vx);
+                } else if (patrols && x > originX + patrolRange) {
+                    vx = -Math.abs(vx);
+                }
+
+                e.x[i] = Fixed.toDouble(x);
+                e.y[i] = Fixed.toDouble(y);
+                e.velX[i] = Fixed.toDouble(vx);
+            }
+        }
+
+        // Packs the player and every enemy as 16.16 ints: 16 bytes for the player, 12 per enemy
+        void snapshot(ByteBuffer out) {
+            out.putInt(Fixed.of(player.x)).putInt(Fixed.of(player.y));
+            out.putInt(Fixed.of(player.velX)).putInt(Fixed.of(player.velY));
+            EntityStore e = enemies;
+            for (int i = 0; i < e.count; i++) {
+                out.putInt(Fixed.of(e.x[i])).putInt(Fixed.of(e.y[i])).putInt(Fixed.of(e.velX[i]));
+            }
+        }
+
+        int snapshotSize() {
+            return 16 + enemies.count * 12;
+        }
+
+        // Static boxes are copied when the terrain changes; after that only kinematic ones are re-read
+        private void syncTerrain() {
+            TerrainIndex t = terrain;
+            if (t != syncedTerrain || t.version != syncedVersion) {
+                syncedTerrain = t;
+                syncedVersion = t.version;
+                count = t.count;
+                if (tx.length < count) {
+                    tx = new int[count];
+                    ty = new int[count];
+                    tw = new int[count];
+                    th = new int[count];
+                    tdx = new int[count];
+                    tdy = new int[count];
+                    oneWay = new boolean[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    if (Math.abs(t.x[i]) + t.width[i] > Fixed.MAX_COORDINATE) {
+                        throw new IllegalStateException("Level too wide for fixed-point physics at x=" + t.x[i]);
+                    }
+                    tx[i] = Fixed.of(t.x[i]);
+                    ty[i] = Fixed.of(t.y[i]);
+                    tw[i] = Fixed.of(t.width[i]);
+                    th[i] = Fixed.of(t.height[i]);
+                    tdx[i] = 0;
+                    tdy[i] = 0;
+                    oneWay[i] = platforms.get(i).oneWay;
+                }
+                buildColumns(t);
+                return;
+            }
+            for (int m = 0; m < t.moverCount; m++) {
+                int i = t.movers[m];
+                int x = Fixed.of(t.x[i]), y = Fixed.of(t.y[i]);
+                tdx[i] = x - tx[i];
+                tdy[i] = y - ty[i];
+                tx[i] = x;
+                ty[i] = y;
+            }
+        }
+
+        private boolean overlaps(int x, int y, int w, int h, int i) {
+            return x < tx[i] + tw[i] && x + w > tx[i] && y < ty[i] + th[i] && y + h > ty[i];
+        }
+
+        private boolean supports(int cx, int footY, int tolerance, int i) {
+            return footY <= ty[i] + tolerance && footY >= ty[i] - tolerance && cx >= tx[i] && cx <= tx[i] + tw[i];
+        }
+
+        // Last supporting index, as CollisionKernel.supportIndex picks it
+        private int supportIndex(int cx, int footY, int tolerance) {
+            int support = -1;
+            int n = gather(cx, 0);
+            for (int c = 0; c < n; c++) {
+                if (supports(cx, footY, tolerance, candidates[c])) support = candidates[c];
+            }
+            return support;
+        }
+
+        private void buildColumns(TerrainIndex t) {
+            boolean[] moving = new boolean[count];
+            for (int m = 0; m < t.moverCount; m++) {
+                moving[t.movers[m]] = true;
+            }
+            columns = 0;
+            for (int i = 0; i < count; i++) {
+                if (!moving[i]) columns = Math.max(columns, column(tx[i] + tw[i]) + 1);
+            }
+            columnStart = new int[columns + 1];
+            for (int i = 0; i < count; i++) {
+                if (moving[i]) continue;
+                for (int c = column(tx[i]); c <= column(tx[i] + tw[i]); c++) columnStart[c + 1]++;
+            }
+            for (int c = 0; c < columns; c++) {
+                columnStart[c + 1] += columnStart[c];
+            }
+            columnItems = new int[columnStart[columns]];
+            int[] fill = Arrays.copyOf(columnStart, columns);
+            for (int i = 0; i < count; i++) {
+                if (moving[i]) continue;
+                for (int c = column(tx[i]); c <= column(tx[i] + tw[i]); c++) columnItems[fill[c]++] = i;
+            }
+        }
+
+        // Every box that may overlap the span [x, x + w], sorted by index and without repeats
+        private int gather(int x, int w) {
+            TerrainIndex t = syncedTerrain;
+            int n = 0;
+            int c1 = Math.min(column(x + w), columns - 1);
+            for (int c = column(x); c <= c1; c++) {
+                for (int k = columnStart[c]; k < columnStart[c + 1]; k++) {
+                    n = addCandidate(n, columnItems[k]);
+                }
+            }
+            for (int m = 0; m < t.moverCount; m++) {
+                n = addCandidate(n, t.movers[m]);
+            }
+            Arrays.sort(candidates, 0, n);
+            int unique = 0;
+            for (int k = 0; k < n; k++) {
+                if (unique == 0 || candidates[unique - 1] != candidates[k]) candidates[unique++] = candidates[k];
+            }
+            return unique;
+        }
+
+        private int addCandidate(int n, int i) {
+            if (n == candidates.length) candidates = Arrays.copyOf(candidates, n * 2);
+            candidates[n] = i;
+            return n + 1;
+        }
+
+        private int column(int x) {
+            return Math.max(0, x >> COLUMN_SHIFT);
+        }
+    }
+
+    // Entity store: struct-of-arrays storage so systems walk flat primitive arrays
+    static class EntityStore {
+        int count = 0;
+        double[] x, y, width, height;
+        double[] velX, velY;
+        double[] originX; // spawn x, used by enemies to bound their patrol
+        double[] phase;   // per-entity animation phase offset, in cycles
+        int[] kind;       // EnemyKind or PowerUpType ordinal
+        int[] support;    // contact cache: terrain index stood on last frame, or -1
+
+        EntityStore(int capacity) {
+            allocate(Math.max(capacity, 4));
+        }
+
+        int add(double x, double y, double width, double height, int kind, double velX, double velY) {
+            if (count == this.x.length) {
+                grow();
+            }
+            int i = count++;
+            this.x[i] = x;
+            this.y[i] = y;
+            this.width[i] = width;
+            this.height[i] = height;
+            this.velX[i] = velX;
+            this.velY[i] = velY;
+            this.originX[i] = x;
+            this.phase[i] = 0;
+            this.kind[i] = kind;
+            this.support[i] = -1;
+            return i;
+        }
+
+        // Removes slot i by moving the last entity into it; order is not preserved
+        void removeAt(int i) {
+            int last = --count;
+            if (i != last) {
+                x[i] = x[last];
+                y[i] = y[last];
+                width[i] = width[last];
+                height[i] = height[last];
+                velX[i] = velX[last];
+                velY[i] = velY[last];
+                originX[i] = originX[last];
+                phase[i] = phase[last];
+                kind[i] = kind[last];
+                support[i] = support[last];
+            }
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        // Bytes write needs for the current entities
+        int byteSize() {
+            return 4 + count * (8 * 8 + 4 * 2);
+        }
+
+        // Count, then each column in bulk
+        void write(ByteBuffer out) {
+            out.putInt(count);
+            for (double[] column : new double[][] { x, y, width, height, velX, velY, originX, phase }) {
+                out.asDoubleBuffer().put(column, 0, count);
+                out.position(out.position() + count * 8);
+            }
+            for (int[] column : new int[][] { kind, support }) {
+                out.asIntBuffer().put(column, 0, count);
+                out.position(out.position() + count * 4);
+            }
+        }
+
+        // Replaces the contents with what write stored
+        void read(ByteBuffer in) {
+            int n = in.getInt();
+            if (n < 0 || (long) n * (8 * 8 + 4 * 2) > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            if (n > x.length) allocate(n);
+            count = n;
+            for (double[] column : new double[][] { x, y, width, height, velX, velY, originX, phase }) {
+                in.asDoubleBuffer().get(column, 0, n);
+                in.position(in.position() + n * 8);
+            }
+            for (int[] column : new int[][] { kind, support }) {
+                in.asIntBuffer().get(column, 0, n);
+                in.position(in.position() + n * 4);
+            }
+        }
+
+        boolean intersects(int i, double ox, double oy, double ow, double oh) {
+            return x[i] < ox + ow &&
+                    x[i] + width[i] > ox &&
+                    y[i] < oy + oh &&
+                    y[i] + height[i] > oy;
+        }
+
+        private void grow() {
+            int n = x.length;
+            double[] ox = x, oy = y, ow = width, oh = height, ovx = velX, ovy = velY, oox = originX, op = phase;
+            int[] ok = kind, os = support;
+            allocate(n * 2);
+            System.arraycopy(ox, 0, x, 0, n);
+            System.arraycopy(oy, 0, y, 0, n);
+            System.arraycopy(ow, 0, width, 0, n);
+            System.arraycopy(oh, 0, height, 0, n);
+            System.arraycopy(ovx, 0, velX, 0, n);
+            System.arraycopy(ovy, 0, velY, 0, n);
+            System.arraycopy(oox, 0, originX, 0, n);
+            System.arraycopy(op, 0, phase, 0, n);
+            System.arraycopy(ok, 0, kind, 0, n);
+            System.arraycopy(os, 0, support, 0, n);
+        }
+
+        private void allocate(int capacity) {
+            x = new double[capacity];
+            y = new double[capacity];
+            width = new double[capacity];
+            height = new double[capacity];
+            velX = new double[capacity];
+            velY = new double[capacity];
+            originX = new double[capacity];
+            phase = new double[capacity];
+            kind = new int[capacity];
+            support = new int[capacity];
+        }
+    }
+
+    // Fireball class
+    class Fireball {
+        double x, y, velX, velY;
+        double width = 8, height = 8;
+        boolean dead = false;
+        double lifeTime = 5.0;
+
+        public Fireball(double x, double y, boolean facingRight) {
+            this.x = x;
+            this.y = y;
+            this.velX = facingRight ? 6 : -6;
+            this.velY = -2;
+        }
+
+        public void update(double deltaTime) {
+            x += velX;
+            y += velY;
+            velY += 0.2;
+
+            for (Platform platform : platforms) {
+                if (intersects(platform)) {
+                    if (velY > 0 && y < platform.y) {
+                        y = platform.y - height;
+                        velY = -4;
+                    }
+                }
+            }
+
+            lifeTime -= deltaTime;
+            // Bounded by the level being played: later levels run well past the first one's end
+            if (lifeTime <= 0 || x < -100 || x > levelEndX + GAME_WIDTH) {
+                dead = true;
+            }
+        }
+
+        public boolean intersects(Platform platform) {
+            return x < platform.x + platform.width &&
+                    x + width > platform.x &&
+                    y < platform.y + platform.height &&
+                    y + height > platform.y;
+        }
+
+        public boolean intersects(EntityStore store, int i) {
+            return store.intersects(i, x, y, width, height);
+        }
+
+        public boolean isDead() { return dead; }
+        public void setDead() { dead = true; }
+
+        public void draw(Surface gc) {
+            gc.setFill(Color.ORANGE);
+            gc.fillOval(x, y, width, height);
+            gc.setFill(Color.RED);
+            gc.fillOval(x + 1, y + 1, width - 2, height - 2);
+        }
+    }
+
+    // Player class with slower movement
+    class Player {
+        double x, y, velX, velY;
+        double width = 24, height = 32;
+        boolean onGround = false;
+        boolean running = false;
+        PowerState powerState = PowerState.SMALL;
+        double startX, startY;
+        private double invincibilityTimer = 0;
+        boolean facingRight = true;
+        private boolean jumpRequested = false;
+        private double jumpBufferTime = 0;
+        private static final double JUMP_BUFFER_DURATION = 0.1;
+        private static final double SUPPORT_TOLERANCE = 1;
+        // Movement tuning, shared with the fixed-point path
+        private static final double WALK_ACCELERATION = 0.1, RUN_ACCELERATION = 0.15;
+        private static final double WALK_MAX_SPEED = 1.8, RUN_MAX_SPEED = 2.5;
+        private static final double GROUND_FRICTION = 0.85, AIR_FRICTION = 0.95, STOP_SPEED = 0.1;
+        private static final double JUMP_SPEED = 9.0, RUN_JUMP_SPEED = 12, MAX_FALL_SPEED = 12;
+        int support = -1; // contact cache: terrain index stood on, or -1
+
+        public Player(double x, double y) {
+            this.x = x;
+            this.y = y;
+            this.startX = x;
+            this.startY = y;
+        }
+
+        public void update(double deltaTime) {
+            updateTimers(deltaTime);
+
+            // Grow and shrink around the feet so a resting contact survives a power change
+            double newHeight = powerState == PowerState.SMALL ? 32 : 48;
+            y += height - newHeight;
+            height = newHeight;
+            width = powerState == PowerState.SMALL ? 24 : 32;
+
+            if (!onGround) {
+                velY += GRAVITY;
+                if (velY > MAX_FALL_SPEED) velY = MAX_FALL_SPEED;
+            }
+
+            TerrainIndex t = terrain;
+            if (support >= t.count) support = -1;
+            if (support >= 0) {
+                // Carried along by whatever it is standing on
+                x += platforms.get(support).dx;
+            }
+
+            x += velX;
+            y += velY;
+
+            if (x < 0) x = 0;
+
+            // Contact cache: while still over last frame's platform, stay on its top edge without
+            // resolving against it again. Walking off it hands over to a neighbour at the same height;
+            // anything else is left to the collision pass.
+            if (support >= 0 && velY >= 0 && !(x < t.x[support] + t.width[support] && x + width > t.x[support] &&
+                    Math.abs(y + height - (t.y[support] - platforms.get(support).dy)) <= SUPPORT_TOLERANCE)) {
+                support = CollisionKernel.supportIndex(x + width / 2, y + height, SUPPORT_TOLERANCE, t.x, t.y, t.width, t.count);
+            }
+            if (support >= 0 && velY >= 0) {
+                y = t.y[support] - height;
+                velY = 0;
+                onGround = true;
+            } else {
+                support = -1;
+                onGround = false;
+            }
+        }
+
+        void updateTimers(double deltaTime) {
+            if (invincibilityTimer > 0) {
+                invincibilityTimer -= deltaTime;
+            }
+
+            if (jumpBufferTime > 0) {
+                jumpBufferTime -= deltaTime;
+            }
+        }
+
+        public void moveLeft() {
+            facingRight = false;
+            double acceleration = running ? RUN_ACCELERATION : WALK_ACCELERATION;
+            double maxSpeed = running ? RUN_MAX_SPEED : WALK_MAX_SPEED;
+
+            if (velX > 0) {
+                velX -= acceleration * 2;
+            } else {
+                velX -= acceleration;
+            }
+
+            if (velX < -maxSpeed) velX = -maxSpeed;
+        }
+
+        public void moveRight() {
+            facingRight = true;
+            double acceleration = running ? RUN_ACCELERATION : WALK_ACCELERATION;
+            double maxSpeed = running ? RUN_MAX_SPEED : WALK_MAX_SPEED;
+
+            if (velX < 0) {
+                velX += acceleration * 2;
+            } else {
+                velX += acceleration;
+            }
+
+            if (velX > maxSpeed) velX = maxSpeed;
+        }
+
+        public void applyMovementFriction() {
+            if (onGround) {
+                velX *= GROUND_FRICTION;
+            } else {
+                velX *= AIR_FRICTION;
+            }
+
+            if (Math.abs(velX) < STOP_SPEED) velX = 0;
+        }
+
+        public void jump() {
+            jumpRequested = true;
+            jumpBufferTime = JUMP_BUFFER_DURATION;
+
+            if (onGround) {
+                performJump();
+            }
+        }
+
+        private void performJump() {
+            if (jumpRequested && (onGround || jumpBufferTime > 0)) {
+                velY = running ? -RUN_JUMP_SPEED : -JUMP_SPEED;
+                onGround = false;
+                jumpRequested = false;
+                jumpBufferTime = 0;
+                playSound(AudioMixer.Sound.JUMP);
+            }
+        }
+
+        public void setRunning(boolean running) {
+            this.running = running;
+        }
+
+        public void takeDamage() {
+            if (invincibilityTimer > 0) return;
+
+            recordHeat(Heatmap.DAMAGE, x + width / 2, y + height / 2);
+            playSound(AudioMixer.Sound.DAMAGE);
+            if (powerState == PowerState.FIRE) {
+                powerState = PowerState.BIG;
+            } else if (powerState == PowerState.BIG) {
+                powerState = PowerState.SMALL;
+            } else {
+                recordHeat(Heatmap.DEATH, x + width / 2, y + height / 2);
+                lives--;
+                if (lives > 0) {
+                    reset();
+                } else {
+                    gameOver = true;
+                }
+            }
+            invincibilityTimer = 2.0;
+        }
+
+        public void collectPowerUp(PowerUpType type) {
+            switch (type) {
+                case MUSHROOM:
+                    if (powerState == PowerState.SMALL) {
+                        powerState = PowerState.BIG;
+                    }
+                    break;
+                case FIRE_FLOWER:
+                    powerState = PowerState.FIRE;
+                    break;
+                case STAR:
+                    invincibilityTimer = 10.0;
+                    break;
+            }
+        }
+
+        public boolean isInvincible() {
+            return invincibilityTimer > 0;
+        }
+
+        public void reset() {
+            x = startX;
+            y = startY;
+            velX = 0;
+            velY = 0;
+            support = -1;
+            invincibilityTimer = 2.0;
+        }
+
+        public boolean intersects(GameObject obj) {
+            return x < obj.x + obj.width &&
+                    x + width > obj.x &&
+                    y < obj.y + obj.height &&
+                    y + height > obj.y;
+        }
+
+        public boolean intersects(EntityStore store, int i) {
+            return store.intersects(i, x, y, width, height);
+        }
+
+        public void draw(Surface gc) {
+            if (invincibilityTimer > 0 && ((int)(invincibilityTimer * 10) % 2 == 0)) {
+                return;
+            }
+
+            Color bodyColor = powerState == PowerState.FIRE ? Color.WHITE : Color.RED;
+            Color overallColor = Color.BLUE;
+
+            gc.setFill(bodyColor);
+            gc.fillRect(x + 2, y + height/2, width - 4, height/2);
+
+            gc.setFill(overallColor);
+            gc.fillRect(x + 4, y + height/2 + 2, width - 8, height/2 - 4);
+
+            gc.setFill(Color.PEACHPUFF);
+            gc.fillOval(x, y, width, height/2 + 4);
+
+            gc.setFill(Color.RED);
+            gc.fillOval(x + 2, y, width - 4, height/4);
+
+            gc.setFill(Color.BLACK);
+            double eyeSize = powerState == PowerState.SMALL ? 3 : 4;
+            gc.fillOval(x + width/4, y + height/6, eyeSize, eyeSize);
+            gc.fillOval(x + 3*width/4 - eyeSize, y + height/6, eyeSize, eyeSize);
+
+            gc.setFill(Color.BROWN);
+            gc.fillRect(x + width/3, y + height/3, width/3, 3);
+
+            // Shoes: spread while airborne, cycling while running, together when standing
+            double stride;
+            if (!onGround && Math.abs(velY) > 0.5) {
+                stride = Animation.PLAYER_JUMP[powerState.ordinal()].sample(animationTime, 0, 1);
+            } else if (Math.abs(velX) > 0.3) {
+                stride = Animation.PLAYER_RUN[powerState.ordinal()].sample(animationTime, 0, quality.animationStride());
+            } else {
+                stride = 0;
+            }
+            double shoeWidth = width / 3;
+            gc.setFill(Color.SADDLEBROWN);
+            gc.fillRect(x + 2 + stride, y + height - 4, shoeWidth, 4);
+            gc.fillRect(x + width - 2 - shoeWidth - stride, y + height - 4, shoeWidth, 4);
+        }
+    }
+
+    // GameObject base class
+    abstract class GameObject {
+        double x, y, width, height;
+
+        public GameObject(double x, double y, double width, double height)
+        {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean intersects(GameObject other) {
+            return x < other.x + other.width &&
+                    x + width > other.x &&
+                    y < other.y + other.height &&
+                    y + height > other.y;
+        }
+
+        public abstract void draw(Surface gc);
+    }
+
+    // Platform class
+    // Moving and falling platforms are kinematic: they follow their own path, push whatever is in
+    // the way and carry whatever rests on them, but nothing ever pushes them back.
+    class Platform extends GameObject {
+        private static final double FALL_DELAY = 0.5;
+
+        PlatformType type;
+        LevelDefinition.Item source;
+        PlatformMotion motion = PlatformMotion.STATIC;
+        boolean oneWay = false; // solid from above only
+        double travelX, travelY, period;
+        double dx, dy; // displacement over the last frame, applied to riders
+        final double originX, originY;
+        private double elapsed = 0;
+        private double fallTimer = -1; // < 0 until something stands on a falling platform
+        private double fallSpeed = 0;
+
+        public Platform(double x, double y, double width, double height, PlatformType type) {
+            super(x, y, width, height);
+            this.type = type;
+            this.originX = x;
+            this.originY = y;
+        }
+
+        public void move(double deltaTime, boolean ridden) {
+            double oldX = x, oldY = y;
+            switch (motion) {
+                case MOVING:
+                    // Eases back and forth between the origin and origin + travel
+                    elapsed += deltaTime;
+                    // StrictMath so every JVM computes the same path
+                    double t = 0.5 - 0.5 * StrictMath.cos(2 * Math.PI * elapsed / period);
+                    x = originX + travelX * t;
+                    y = originY + travelY * t;
+                    break;
+                case FALLING:
+                    if (fallTimer < 0 && ridden) {
+                        fallTimer = FALL_DELAY;
+                    } else if (fallTimer > 0) {
+                        fallTimer = Math.max(0, fallTimer - deltaTime);
+                    } else if (fallTimer == 0) {
+                        fallSpeed = Math.min(fallSpeed + GRAVITY, 12);
+                        y += fallSpeed;
+                        if (y > GAME_HEIGHT + 100) {
+                            // Back where it started; nothing can be riding it down here
+                            y = originY;
+                            oldY = y;
+                            fallSpeed = 0;
+                            fallTimer = -1;
+                        }
+                    }
+                    break;
+                case STATIC:
+                    break;
+            }
+            dx = x - oldX;
+            dy = y - oldY;
+        }
+
+        @Override
+        public void draw(Surface gc) {
+            switch (type) {
+                case GROUND:
+                    gc.setFill(Color.GREEN);
+                    gc.fillRect(x, y, width, height);
+                    if (quality.drawOutlines()) {
+                        gc.setFill(Color.DARKGREEN);
+                        gc.strokeRect(x, y, width, height);
+                    }
+                    break;
+                case BRICK:
+                    gc.setFill(Color.ORANGE);
+                    gc.fillRect(x, y, width, height);
+                    if (quality.drawOutlines()) {
+                        gc.setFill(Color.DARKORANGE);
+                        gc.strokeRect(x, y, width, height);
+                    }
+                    // Draw brick pattern
+                    if (quality.drawDecorations()) {
+                        for (int i = 0; i < width; i += 16) {
+                            gc.strokeLine(x + i, y, x + i, y + height);
+                        }
+                    }
+                    break;
+                case PIPE:
+                    gc.setFill(Color.LIGHTGREEN);
+                    gc.fillRect(x, y, width, height);
+                    if (quality.drawOutlines()) {
+                        gc.setFill(Color.DARKGREEN);
+                        gc.strokeRect(x, y, width, height);
+                    }
+                    break;
+            }
+        }
+    }
+
+    // QuestionBlock class
+    class QuestionBlock extends GameObject {
+        PowerUpType powerUpType;
+        boolean used = false;
+        private final double animationPhase;
+
+        public QuestionBlock(double x, double y, PowerUpType powerUpType) {
+            super(x, y, TILE_SIZE, TILE_SIZE);
+            this.powerUpType = powerUpType;
+            this.animationPhase = Animation.phaseFor(x, y);
+        }
+
+        public void hit() {
+            if (!used) {
+                used = true;
+            }
+        }
+
+        public void spawnPowerUp() {
+            if (powerUpType == PowerUpType.COIN) {
+                return; // Coins are handled directly in collision
+            }
+            addPowerUp(x, y - 24, powerUpType);
+        }
+
+        public boolean isUsed() {
+            return used;
+        }
+
+        @Override
+        public void draw(Surface gc) {
+            if (used) {
+                // Empty block
+                gc.setFill(Color.DARKGRAY);
+                gc.fillRect(x, y, width, height);
+                if (quality.drawOutlines()) {
+                    gc.setFill(Color.GRAY);
+                    gc.strokeRect(x, y, width, height);
+                }
+            } else {
+                // Question block with animation
+                double brightness = Animation.BLOCK_SHIMMER.sample(animationTime, animationPhase, quality.animationStride());
+                Color blockColor = Color.color(1.0 * brightness, 0.8 * brightness, 0.0);
+
+                gc.setFill(blockColor);
+                gc.fillRect(x, y, width, height);
+                if (quality.drawOutlines()) {
+                    gc.setFill(Color.DARKORANGE);
+                    gc.strokeRect(x, y, width, height);
+                }
+
+                // Question mark
+                gc.setFill(Color.WHITE);
+                gc.setFont(FontWeight.BOLD, 20);
+                gc.fillText("?", x + width/2 - 6, y + height/2 + 7);
+            }
+        }
+    }
+
+    // Pipe class
+    class Pipe extends GameObject {
+        public Pipe(double x, double y, double width, double height) {
+            super(x, y, width, height);
+        }
+
+        @Override
+        public void draw(Surface gc) {
+            // Pipe body
+            gc.setFill(Color.LIGHTGREEN);
+            gc.fillRect(x, y, width, height);
+
+            // Pipe rim (top part)
+            gc.setFill(Color.GREEN);
+            gc.fillRect(x - 4, y, width + 8, 8);
+
+            // Pipe outline
+            if (quality.drawOutlines()) {
+                gc.setFill(Color.DARKGREEN);
+                gc.strokeRect(x, y, width, height);
+                gc.strokeRect(x - 4, y, width + 8, 8);
+            }
+
+            // Pipe details
+            if (quality.drawDecorations()) {
+                gc.strokeLine(x + width/2, y + 8, x + width/2, y + height);
+            }
+        }
+    }
+
+    // Particle base class
+    abstract class Particle {
+        double x, y, velY;
+        double lifeTime;
+        double maxLifeTime;
+
+        public Particle(double x, double y, double lifeTime) {
+            this.x = x;
+            this.y = y;
+            this.lifeTime = lifeTime;
+            this.maxLifeTime = lifeTime;
+            this.velY = -2;
+        }
+
+        public void update(double deltaTime) {
+            y += velY;
+            lifeTime -= deltaTime;
+        }
+
+        public boolean isDead() {
+            return lifeTime <= 0;
+        }
+
+        public abstract void draw(Surface gc);
+    }
+
+    // ScoreParticle class
+    class ScoreParticle extends Particle {
+        String text;
+
+        public ScoreParticle(double x, double y, String text) {
+            super(x, y, 1.5);
+            this.text = text;
+        }
+
+        @Override
+        public void draw(Surface gc) {
+            double alpha = lifeTime / maxLifeTime;
+            gc.setFont(FontWeight.BOLD, 14);
+            gc.setFill(Color.color(1, 1, 1, alpha));
+            gc.fillText(text, x, y);
+        }
+    }
+
+    // HitParticle class
+    class HitParticle extends Particle {
+        public HitParticle(double x, double y) {
+            super(x, y, 0.5);
+            this.velY = -4;
+        }
+
+        @Override
+        public void draw(Surface gc) {
+            double alpha = lifeTime / maxLifeTime;
+            gc.setFill(Color.color(1, 1, 0, alpha));
+            gc.fillOval(x - 2, y - 2, 4, 4);
+            gc.fillOval(x - 4, y, 4, 4);
+            gc.fillOval(x + 2, y, 4, 4);
+        }
+    }
+
+    // GameEnvironment class: headless reinforcement-learning wrapper around one simulation.
+    // Observations are a tile grid around the player written into a caller-supplied buffer.
+    static class GameEnvironment {
+        static final int OBS_COLS = 24;
+        static final int OBS_ROWS = 19;
+        static final int OBS_SIZE = OBS_COLS * OBS_ROWS;
+
+        // Observation cell codes
+        static final byte CELL_EMPTY = 0;
+        static final byte CELL_TERRAIN = 1;
+        static final byte CELL_BLOCK = 2;
+        static final byte CELL_USED_BLOCK = 3;
+        static final byte CELL_PIPE = 4;
+        static final byte CELL_ENEMY = 5;
+        static final byte CELL_COIN = 6;
+        static final byte CELL_POWER_UP = 7;
+        static final byte CELL_FIREBALL = 8;
+        static final byte CELL_PLAYER = 9;
+
+        static final double STEP_TIME = 1.0 / 60.0;
+        private static final int MAX_NOOP_START = 30;
+
+        private final MarioGameEnhanced game = new MarioGameEnhanced();
+        private final ByteBuffer observation;
+        private final int frameSkip;
+        private SplittableRandom random = new SplittableRandom();
+        private boolean done;
+        private double furthestX;
+        private int originCol, originRow;
+
+        GameEnvironment(ByteBuffer observation, int frameSkip) {
+            if (observation.capacity() < OBS_SIZE) {
+                throw new IllegalArgumentException("Observation buffer needs " + OBS_SIZE + " bytes");
+            }
+            this.observation = observation;
+            this.frameSkip = frameSkip;
+        }
+
+        GameEnvironment() {
+            this(ByteBuffer.allocateDirect(OBS_SIZE), 4);
+        }
+
+        // Starts a new episode; the seed picks a short run of idle frames so episodes don't all start identically
+        ByteBuffer reset(long seed) {
+            random = new SplittableRandom(seed);
+            game.restartGame();
+            int noops = random.nextInt(MAX_NOOP_START + 1);
+            for (int i = 0; i < noops; i++) {
+                game.update(STEP_TIME, 0);
+            }
+            done = false;
+            furthestX = game.player.x;
+            writeObservation();
+            return observation;
+        }
+
+        // Holds the action (INPUT_* bits) for frameSkip frames and returns the reward collected
+        float step(int actionMask) {
+            if (done) {
+                throw new IllegalStateException("Episode finished; call reset first");
+            }
+            int startScore = game.score;
+            int startLives = game.lives;
+            double startFurthest = furthestX;
+            float reward = 0;
+
+            for (int i = 0; i < frameSkip && !game.gameOver && !game.levelComplete; i++) {
+                PreparedLevel before = game.currentLevel;
+                game.update(STEP_TIME, actionMask);
+                if (game.currentLevel != before) {
+                    // Cleared a level: bank the progress made on it, then measure from the new start
+                    reward += (float) (furthestX - startFurthest) * 0.1f + 50f;
+                    furthestX = startFurthest = game.player.x;
+                }
+                if (game.player.x > furthestX) furthestX = game.player.x;
+            }
+
+            reward += (game.score - startScore) * 0.01f;
+            reward += (float) (furthestX - startFurthest) * 0.1f;
+            reward -= (startLives - game.lives) * 10f;
+            if (game.levelComplete) reward += 50f;
+
+            done = game.gameOver || game.levelComplete;
+            writeObservation();
+            return reward;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        ByteBuffer observation() {
+            return observation;
+        }
+
+        private void writeObservation() {
+            Player player = game.player;
+            originCol = (int) Math.floor((player.x + player.width / 2) / TILE_SIZE) - OBS_COLS / 3;
+            originRow = (int) Math.floor((player.y + player.height / 2) / TILE_SIZE) - OBS_ROWS / 2;
+
+            for (int i = 0; i < OBS_SIZE; i++) {
+                observation.put(i, CELL_EMPTY);
+            }
+
+            TerrainIndex t = game.terrain;
+            for (int i = 0; i < t.count; i++) {
+                mark(t.x[i], t.y[i], t.width[i], t.height[i], CELL_TERRAIN);
+            }
+            for (Pipe pipe : game.pipes) {
+                mark(pipe.x, pipe.y, pipe.width, pipe.height, CELL_PIPE);
+            }
+            for (QuestionBlock block : game.questionBlocks) {
+                mark(block.x, block.y, block.width, block.height, block.isUsed() ? CELL_USED_BLOCK : CELL_BLOCK);
+            }
+            markStore(game.coins, CELL_COIN);
+            markStore(game.powerUps, CELL_POWER_UP);
+            markStore(game.enemies, CELL_ENEMY);
+            for (Fireball fireball : game.fireballs) {
+                mark(fireball.x, fireball.y, fireball.width, fireball.height, CELL_FIREBALL);
+            }
+            mark(player.x, player.y, player.width, player.height, CELL_PLAYER);
+        }
+
+        private void markStore(EntityStore store, byte code) {
+            for (int i = 0; i < store.count; i++) {
+                // Plants down their pipes have no height and cover no cell
+                if (store.height[i] <= 0) continue;
+                mark(store.x[i], store.y[i], store.width[i], store.height[i], code);
+            }
+        }
+
+        // Writes code into every grid cell the box covers; later writes win
+        private void mark(double x, double y, double width, double height, byte code) {
+            int c0 = Math.max((int) Math.floor(x / TILE_SIZE) - originCol, 0);
+            int c1 = Math.min((int) Math.floor((x + width - 1) / TILE_SIZE) - originCol, OBS_COLS - 1);
+            int r0 = Math.max((int) Math.floor(y / TILE_SIZE) - originRow, 0);
+            int r1 = Math.min((int) Math.floor((y + height - 1) / TILE_SIZE) - originRow, OBS_ROWS - 1);
+            for (int r = r0; r <= r1; r++) {
+                int row = r * OBS_COLS;
+                for (int c = c0; c <= c1; c++) {
+                    observation.put(row + c, code);
+                }
+            }
+        }
+    }
+
+    // VectorEnvironment class: steps a batch of environments together on a fork/join pool.
+    // All observations live in one direct buffer (env i at offset i * OBS_SIZE), and
+    // finished environments are reset in place so the batch never stalls.
+    static class VectorEnvironment {
+        private final GameEnvironment[] envs;
+        private final ByteBuffer observations;
+        private final ForkJoinPool pool;
+        private final StepChunk[] chunks;
+        private final RecursiveAction stepAll = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(chunks);
+            }
+        };
+        private final long baseSeed;
+        private final long[] episodes; // per env, so seeds don't depend on which worker resets first
+        private int[] actions;
+        private float[] rewards;
+        private boolean[] dones;
+
+        VectorEnvironment(int count, int frameSkip, long seed, int parallelism) {
+            envs = new GameEnvironment[count];
+            observations = ByteBuffer.allocateDirect(count * GameEnvironment.OBS_SIZE);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer slice = observations.slice(i * GameEnvironment.OBS_SIZE, GameEnvironment.OBS_SIZE);
+                envs[i] = new GameEnvironment(slice, frameSkip);
+            }
+            baseSeed = seed;
+            episodes = new long[count];
+            pool = new ForkJoinPool(parallelism);
+
+            int chunkCount = Math.min(count, parallelism * 4);
+            chunks = new StepChunk[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                chunks[c] = new StepChunk(c * count / chunkCount, (c + 1) * count / chunkCount);
+            }
+        }
+
+        int size() {
+            return envs.length;
+        }
+
+        // Every environment records into the shared telemetry from the next reset on
+        void record(Telemetry telemetry) {
+            for (GameEnvironment env : envs) {
+                env.game.telemetry = telemetry;
+            }
+        }
+
+        ByteBuffer observations() {
+            return observations;
+        }
+
+        ByteBuffer reset() {
+            for (int i = 0; i < envs.length; i++) {
+                envs[i].reset(nextSeed(i));
+            }
+            return observations;
+        }
+
+        // rewards[i] and dones[i] receive env i's result; a done env has already been reset
+        void step(int[] actions, float[] rewards, boolean[] dones) {
+            this.actions = actions;
+            this.rewards = rewards;
+            this.dones = dones;
+            for (StepChunk chunk : chunks) {
+                chunk.reinitialize();
+            }
+            stepAll.reinitialize();
+            pool.invoke(stepAll);
+        }
+
+        void close() {
+            pool.shutdown();
+        }
+
+        // Env i's n-th episode gets baseSeed + n * size + i: distinct across envs and the same every run
+        private long nextSeed(int i) {
+            return baseSeed + episodes[i]++ * envs.length + i;
+        }
+
+        private class StepChunk extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final int from, to;
+
+            StepChunk(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                for (int i = from; i < to; i++) {
+                    GameEnvironment env = envs[i];
+                    rewards[i] = env.step(actions[i]);
+                    dones[i] = env.isDone();
+                    if (dones[i]) {
+                        env.reset(nextSeed(i));
+                    }
+                }
+            }
+        }
+
+        // Random-policy throughput check: reports environment steps (and simulated frames) per second
+        // and, given a directory, merges the heatmaps of every episode into it
+        static void benchmark(int count, int steps, Path heatmapDir) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            VectorEnvironment vec = new VectorEnvironment(count, 4, 1, threads);
+            Telemetry telemetry = heatmapDir != null ? new Telemetry() : null;
+            if (telemetry != null) vec.record(telemetry);
+            int[] actions = new int[count];
+            float[] rewards = new float[count];
+            boolean[] dones = new boolean[count];
+            SplittableRandom random = new SplittableRandom(7);
+            vec.reset();
+
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int s = 0; s < steps; s++) {
+                    for (int i = 0; i < count; i++) {
+                        actions[i] = INPUT_RIGHT | (random.nextInt(4) == 0 ? INPUT_JUMP : 0) | random.nextInt(2) * INPUT_RUN;
+                    }
+                    vec.step(actions, rewards, dones);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double rate = (double) count * steps / seconds;
+                System.out.printf("%d envs x %d steps on %d threads: %.0f steps/s (%.0f frames/s)%n",
+                        count, steps, threads, rate, rate * 4);
+            }
+            vec.close();
+            if (telemetry != null) {
+                try {
+                    telemetry.flush(heatmapDir);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    // Surface: the drawing calls the scene uses, so it can target a JavaFX canvas or an offscreen framebuffer
+    interface Surface {
+        void setFill(Color color);
+        void fillRect(double x, double y, double width, double height);
+        void fillOval(double x, double y, double width, double height);
+        void strokeRect(double x, double y, double width, double height);
+        void strokeLine(double x1, double y1, double x2, double y2);
+        void setFont(FontWeight weight, double size);
+        void fillText(String text, double x, double y);
+        void drawImage(TileImage image, double x, double y);
+        void save();
+        void restore();
+        void translate(double x, double y);
+    }
+
+    // TileImage class: a backend-neutral ARGB image; surfaces convert it once and cache the result
+    static final class TileImage {
+        final int width, height;
+        final int[] argb;
+
+        TileImage(int width, int height, int[] argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+        }
+    }
+
+    // ParallaxLayer class: scenery pre-rendered once into a tile that wraps horizontally. Scrolled at
+    // a fraction of the camera speed, it costs at most two drawImage calls per frame.
+    static class ParallaxLayer {
+        final TileImage tile;
+        final double scrollFactor;
+        final double y;
+
+        ParallaxLayer(TileImage tile, double scrollFactor, double y) {
+            this.tile = tile;
+            this.scrollFactor = scrollFactor;
+            this.y = y;
+        }
+
+        void draw(Surface gc, double cameraX) {
+            // Whole pixels only, so the tile seam never lands between pixels
+            double offset = Math.floor(cameraX * scrollFactor) % tile.width;
+            gc.drawImage(tile, -offset, y);
+            if (tile.width - offset < GAME_WIDTH) {
+                gc.drawImage(tile, tile.width - offset, y);
+            }
+        }
+
+        static List<ParallaxLayer> createDefaultLayers() {
+            List<ParallaxLayer> layers = new ArrayList<>();
+            layers.add(new ParallaxLayer(paintClouds(), 0.2, 30));
+            layers.add(new ParallaxLayer(paintHills(), 0.4, GAME_HEIGHT - TILE_SIZE - 200));
+            layers.add(new ParallaxLayer(paintBushes(), 0.7, GAME_HEIGHT - TILE_SIZE - 36));
+            return layers;
+        }
+
+        private static TileImage paintClouds() {
+            int width = GAME_WIDTH * 2, height = 160;
+            SoftwareSurface s = new SoftwareSurface(width, height);
+            SplittableRandom random = new SplittableRandom(11);
+            for (int i = 0; i < 7; i++) {
+                double x = i * width / 7.0 + random.nextInt(80);
+                double y = 10 + random.nextInt(90);
+                double size = 40 + random.nextInt(30);
+                s.setFill(Color.WHITE);
+                wrapOval(s, width, x, y + size * 0.3, size * 2.2, size * 0.7);
+                wrapOval(s, width, x + size * 0.4, y, size, size * 0.8);
+                wrapOval(s, width, x + size * 1.0, y + size * 0.1, size * 0.9, size * 0.7);
+            }
+            return s.toTileImage();
+        }
+
+        private static TileImage paintHills() {
+            int width = GAME_WIDTH * 2, height = 200;
+            SoftwareSurface s = new SoftwareSurface(width, height);
+            SplittableRandom random = new SplittableRandom(23);
+            for (int i = 0; i < 5; i++) {
+                double w = 260 + random.nextInt(180);
+                double h = 120 + random.nextInt(70);
+                double x = i * width / 5.0 + random.nextInt(100);
+                s.setFill(i % 2 == 0 ? Color.FORESTGREEN : Color.LIMEGREEN);
+                // Ovals centred on the bottom edge so only the upper half shows
+                wrapOval(s, width, x, height - h / 2, w, h);
+            }
+            return s.toTileImage();
+        }
+
+        private static TileImage paintBushes() {
+            int width = GAME_WIDTH, height = 36;
+            SoftwareSurface s = new SoftwareSurface(width, height);
+            SplittableRandom random = new SplittableRandom(37);
+            for (int i = 0; i < 6; i++) {
+                double x = i * width / 6.0 + random.nextInt(60);
+                int puffs = 2 + random.nextInt(3);
+                s.setFill(Color.GREEN);
+                for (int p = 0; p < puffs; p++) {
+                    wrapOval(s, width, x + p * 22, 8, 34, 40);
+                }
+            }
+            return s.toTileImage();
+        }
+
+        // Draws the oval and its copies one tile to either side, so shapes crossing an edge wrap seamlessly
+        private static void wrapOval(SoftwareSurface s, int tileWidth, double x, double y, double w, double h) {
+            s.fillOval(x, y, w, h);
+            s.fillOval(x - tileWidth, y, w, h);
+            s.fillOval(x + tileWidth, y, w, h);
+        }
+    }
+
+    // CanvasSurface class: forwards to a JavaFX GraphicsContext
+    static class CanvasSurface implements Surface {
+        private final GraphicsContext gc;
+        private final Map<Long, Font> fonts = new HashMap<>();
+        private final Map<TileImage, WritableImage> images = new IdentityHashMap<>();
+
+        CanvasSurface(GraphicsContext gc) {
+            this.gc = gc;
+        }
+
+        @Override public void setFill(Color color) { gc.setFill(color); }
+        @Override public void fillRect(double x, double y, double w, double h) { gc.fillRect(x, y, w, h); }
+        @Override public void fillOval(double x, double y, double w, double h) { gc.fillOval(x, y, w, h); }
+        @Override public void strokeRect(double x, double y, double w, double h) { gc.strokeRect(x, y, w, h); }
+        @Override public void strokeLine(double x1, double y1, double x2, double y2) { gc.strokeLine(x1, y1, x2, y2); }
+        @Override public void fillText(String text, double x, double y) { gc.fillText(text, x, y); }
+        @Override public void drawImage(TileImage image, double x, double y) { gc.drawImage(toFx(image), x, y); }
+        @Override public void save() { gc.save(); }
+        @Override public void restore() { gc.restore(); }
+        @Override public void translate(double x, double y) { gc.translate(x, y); }
+
+        @Override
+        public void setFont(FontWeight weight, double size) {
+            long key = Double.doubleToLongBits(size) ^ weight.ordinal();
+            gc.setFont(fonts.computeIfAbsent(key, k -> Font.font("Arial", weight, size)));
+        }
+
+        private WritableImage toFx(TileImage image) {
+            return images.computeIfAbsent(image, tile -> {
+                WritableImage fx = new WritableImage(tile.width, tile.height);
+                fx.getPixelWriter().setPixels(0, 0, tile.width, tile.height,
+                        PixelFormat.getIntArgbInstance(), tile.argb, 0, tile.width);
+                return fx;
+            });
+        }
+    }
+
+    // ScaledDisplay class: the scene is drawn once per frame into a native-resolution software framebuffer,
+    // uploaded to one image and shown with a single nearest-neighbour drawImage. The scale is the largest
+    // whole number of device pixels per game pixel that fits, so HiDPI and fullscreen windows stay sharp
+    // and cost the same drawing work as 800x600; the rest of the window is letterboxed.
+    static class ScaledDisplay {
+        final SoftwareSurface frame = new SoftwareSurface(GAME_WIDTH, GAME_HEIGHT);
+        private final WritableImage image = new WritableImage(GAME_WIDTH, GAME_HEIGHT);
+        private final Canvas canvas;
+
+        ScaledDisplay(Canvas canvas) {
+            this.canvas = canvas;
+        }
+
+        // outputScale is device pixels per canvas unit, from the window
+        void present(double outputScaleX, double outputScaleY) {
+            // Every frame starts with an opaque clear, so the pixels are already premultiplied
+            image.getPixelWriter().setPixels(0, 0, GAME_WIDTH, GAME_HEIGHT,
+                    PixelFormat.getIntArgbPreInstance(), frame.pixels, 0, GAME_WIDTH);
+
+            double width = canvas.getWidth(), height = canvas.getHeight();
+            double fit = Math.min(width * outputScaleX / GAME_WIDTH, height * outputScaleY / GAME_HEIGHT);
+            double scale = fit >= 1 ? Math.floor(fit) : fit; // a window smaller than the game shrinks it instead
+            double drawWidth = GAME_WIDTH * scale / outputScaleX;
+            double drawHeight = GAME_HEIGHT * scale / outputScaleY;
+            // Centered, snapped to whole device pixels
+            double x = Math.floor((width - drawWidth) / 2 * outputScaleX) / outputScaleX;
+            double y = Math.floor((height - drawHeight) / 2 * outputScaleY) / outputScaleY;
+
+            GraphicsContext gc = canvas.getGraphicsContext2D();
+            gc.setFill(Color.BLACK);
+            gc.fillRect(0, 0, width, height);
+            gc.setImageSmoothing(false);
+            gc.drawImage(image, x, y, drawWidth, drawHeight);
+        }
+    }
+
+    // SoftwareSurface class: rasterises into an int[] ARGB framebuffer with no display.
+    // Strokes are 1px black (the canvas default stroke) and text uses a built-in 5x7 font.
+    static class SoftwareSurface implements Surface {
+        private static final String GLYPH_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789:!?'-,./";
+        // Each glyph is 7 rows of 5 bits, first row in the highest bits
+        private static final long[] GLYPHS = {
+                0x3A31FC631L, 0x7A31F463EL, 0x3A308422EL, 0x7A318C63EL, 0x7E10F421FL, 0x7E10F4210L,
+                0x3A30BC62FL, 0x4631FC631L, 0x38842108EL, 0x1C4210A4CL, 0x4654C5251L, 0x42108421FL,
+                0x4775AC631L, 0x4639ACE31L, 0x3A318C62EL, 0x7A31F4210L, 0x3A318D64DL, 0x7A31F5251L,
+                0x3E107043EL, 0x7C8421084L, 0x46318C62EL, 0x46318C544L, 0x4631AD6AAL, 0x462A22A31L,
+                0x462A21084L, 0x7C222221FL, 0x3A33AE62EL, 0x11842108EL, 0x3A211111FL, 0x7C441062EL,
+                0x08CA97C42L, 0x7E1E0862EL, 0x1910F462EL, 0x7C2222108L, 0x3A317462EL, 0x3A317844CL,
+                0x018C03180L, 0x108421004L, 0x3A2111004L, 0x108800000L, 0x0000F8000L, 0x000003088L,
+                0x00000018CL, 0x042222210L,
+        };
+        private static final int STROKE = 0xFF000000;
+
+        final int width, height;
+        final int[] pixels;
+        private int fill = 0xFF000000;
+        private int textScale = 2;
+        private double tx = 0, ty = 0;
+        private double[] saved = new double[16];
+        private int savedDepth = 0;
+
+        SoftwareSurface(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.pixels = new int[width * height];
+        }
+
+        static int argb(Color color) {
+            return (int) Math.round(color.getOpacity() * 255) << 24 |
+                    (int) Math.round(color.getRed() * 255) << 16 |
+                    (int) Math.round(color.getGreen() * 255) << 8 |
+                    (int) Math.round(color.getBlue() * 255);
+        }
+
+        static int countDifferentPixels(int[] a, int[] b) {
+            int n = Math.min(a.length, b.length);
+            int differing = Math.abs(a.length - b.length);
+            for (int i = 0; i < n; i++) {
+                if (a[i] != b[i]) differing++;
+            }
+            return differing;
+        }
+
+        @Override
+        public void setFill(Color color) {
+            fill = argb(color);
+        }
+
+        @Override
+        public void fillRect(double x, double y, double w, double h) {
+            int x0 = (int) Math.floor(x + tx), y0 = (int) Math.floor(y + ty);
+            int x1 = (int) Math.floor(x + tx + w), y1 = (int) Math.floor(y + ty + h);
+            for (int py = Math.max(y0, 0); py < Math.min(y1, height); py++) {
+                span(py, x0, x1, fill);
+            }
+        }
+
+        @Override
+        public void fillOval(double x, double y, double w, double h) {
+            double rx = w / 2, ry = h / 2;
+            double cx = x + tx + rx, cy = y + ty + ry;
+            if (rx <= 0 || ry <= 0) return;
+            int y0 = (int) Math.floor(cy - ry), y1 = (int) Math.ceil(cy + ry);
+            for (int py = Math.max(y0, 0); py < Math.min(y1, height); py++) {
+                double dy = (py + 0.5 - cy) / ry;
+                if (dy <= -1 || dy >= 1) continue;
+                double half = rx * Math.sqrt(1 - dy * dy);
+                span(py, (int) Math.round(cx - half), (int) Math.round(cx + half), fill);
+            }
+        }
+
+        @Override
+        public void strokeRect(double x, double y, double w, double h) {
+            strokeLine(x, y, x + w, y);
+            strokeLine(x, y + h, x + w, y + h);
+            strokeLine(x, y, x, y + h);
+            strokeLine(x + w, y, x + w, y + h);
+        }
+
+        @Override
+        public void strokeLine(double x1, double y1, double x2, double y2) {
+            int ax = (int) Math.floor(x1 + tx), ay = (int) Math.floor(y1 + ty);
+            int bx = (int) Math.floor(x2 + tx), by = (int) Math.floor(y2 + ty);
+            int dx = Math.abs(bx - ax), dy = -Math.abs(by - ay);
+            int sx = ax < bx ? 1 : -1, sy = ay < by ? 1 : -1;
+            int err = dx + dy;
+            while (true) {
+                plot(ax, ay, STROKE);
+                if (ax == bx && ay == by) break;
+                int e2 = 2 * err;
+                if (e2 >= dy) { err += dy; ax += sx; }
+                if (e2 <= dx) { err += dx; ay += sy; }
+            }
+        }
+
+        @Override
+        public void setFont(FontWeight weight, double size) {
+            textScale = Math.max(1, (int) Math.round(size / 8));
+        }
+
+        // (x, y) is the text baseline, as on the canvas
+        @Override
+        public void fillText(String text, double x, double y) {
+            int penX = (int) Math.floor(x + tx);
+            int top = (int) Math.floor(y + ty) - 7 * textScale;
+            for (int i = 0; i < text.length(); i++) {
+                int glyph = GLYPH_CHARS.indexOf(Character.toUpperCase(text.charAt(i)));
+                if (glyph >= 0) {
+                    long bits = GLYPHS[glyph];
+                    for (int row = 0; row < 7; row++) {
+                        for (int col = 0; col < 5; col++) {
+                            if ((bits >>> (34 - row * 5 - col) & 1) != 0) {
+                                int px = penX + col * textScale, py = top + row * textScale;
+                                for (int sy = 0; sy < textScale; sy++) {
+                                    if (py + sy >= 0 && py + sy < height) {
+                                        span(py + sy, px, px + textScale, fill);
+                                    }
+                                }
+                            }
+                        }
                     }
-                    break;
-                case PIPE:
-                    gc.setFill(Color.LIGHTGREEN);
-                    gc.fillRect(x, y, width, height);
-                    gc.setFill(Color.DARKGREEN);
-                    gc.strokeRect(x, y, width, height);
-                    break;
+                }
+                penX += 6 * textScale;
+            }
+        }
+
+        @Override
+        public void drawImage(TileImage image, double x, double y) {
+            int left = (int) Math.floor(x + tx), top = (int) Math.floor(y + ty);
+            int from = Math.max(0, -left), to = Math.min(image.width, width - left);
+            if (from >= to) return;
+            for (int row = Math.max(0, -top); row < Math.min(image.height, height - top); row++) {
+                int src = row * image.width;
+                int dst = (top + row) * width + left;
+                for (int col = from; col < to; col++) {
+                    blend(dst + col, image.argb[src + col]);
+                }
+            }
+        }
+
+        TileImage toTileImage() {
+            return new TileImage(width, height, pixels.clone());
+        }
+
+        @Override
+        public void save() {
+            if (savedDepth + 2 > saved.length) {
+                saved = Arrays.copyOf(saved, saved.length * 2);
+            }
+            saved[savedDepth++] = tx;
+            saved[savedDepth++] = ty;
+        }
+
+        @Override
+        public void restore() {
+            if (savedDepth == 0) return;
+            ty = saved[--savedDepth];
+            tx = saved[--savedDepth];
+        }
+
+        @Override
+        public void translate(double x, double y) {
+            tx += x;
+            ty += y;
+        }
+
+        private void plot(int x, int y, int color) {
+            if (x >= 0 && x < width && y >= 0 && y < height) {
+                blend(y * width + x, color);
+            }
+        }
+
+        // Fills [x0, x1) on row y, clipped to the framebuffer
+        private void span(int y, int x0, int x1, int color) {
+            int from = Math.max(x0, 0), to = Math.min(x1, width);
+            if (from >= to) return;
+            int row = y * width;
+            if ((color >>> 24) == 0xFF) {
+                Arrays.fill(pixels, row + from, row + to, color);
+            } else {
+                for (int x = from; x < to; x++) {
+                    blend(row + x, color);
+                }
+            }
+        }
+
+        private void blend(int index, int color) {
+            int alpha = color >>> 24;
+            if (alpha == 0xFF) {
+                pixels[index] = color;
+                return;
+            }
+            if (alpha == 0) return;
+            int dst = pixels[index];
+            int inv = 255 - alpha;
+            int r = (((color >> 16) & 0xFF) * alpha + ((dst >> 16) & 0xFF) * inv) / 255;
+            int g = (((color >> 8) & 0xFF) * alpha + ((dst >> 8) & 0xFF) * inv) / 255;
+            int b = ((color & 0xFF) * alpha + (dst & 0xFF) * inv) / 255;
+            pixels[index] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+    }
+
+    // FrameExporter class: encodes captured frames on worker threads. PNG frames are written as
+    // frame_000000.png... in a directory; RAW appends rgb24 frames to one file, e.g. for
+    // ffmpeg -f rawvideo -pix_fmt rgb24 -s 800x600 -r 60 -i frames.rgb out.mp4
+    static class FrameExporter implements AutoCloseable {
+        enum Format { PNG, RAW }
+
+        private final Path target;
+        private final Format format;
+        private final int width, height;
+        private final ExecutorService encoders;
+        private final BlockingQueue<int[]> freeBuffers;
+        private final OutputStream rawOut;
+        private final byte[] rawRow;
+        private final List<Future<?>> pending = new ArrayList<>();
+        private Throwable failure; // first encode error among futures already dropped from pending
+        private int frameIndex = 0;
+
+        FrameExporter(Path target, Format format, int width, int height, int threads) {
+            this.target = target;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            // Raw frames must reach the stream in order, so they share one writer thread
+            int workers = format == Format.RAW ? 1 : Math.max(1, threads);
+            this.encoders = Executors.newFixedThreadPool(workers, r -> {
+                Thread t = new Thread(r, "frame-encoder");
+                t.setDaemon(true);
+                return t;
+            });
+            // Bounded pool of frame copies: the capture loop blocks instead of queueing unbounded memory
+            this.freeBuffers = new ArrayBlockingQueue<>(workers * 2);
+            for (int i = 0; i < workers * 2; i++) {
+                freeBuffers.add(new int[width * height]);
+            }
+            try {
+                if (format == Format.PNG) {
+                    Files.createDirectories(target);
+                    rawOut = null;
+                } else {
+                    Path parent = target.toAbsolutePath().getParent();
+                    if (parent != null) Files.createDirectories(parent);
+                    rawOut = new BufferedOutputStream(Files.newOutputStream(target), 1 << 20);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.rawRow = new byte[width * 3];
+        }
+
+        void submit(int[] framebuffer) {
+            int[] frame;
+            try {
+                frame = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a frame buffer", e);
+            }
+            System.arraycopy(framebuffer, 0, frame, 0, frame.length);
+            int index = frameIndex++;
+            pending.add(encoders.submit(() -> {
+                try {
+                    if (format == Format.PNG) {
+                        writePng(frame, index);
+                    } else {
+                        writeRaw(frame);
+                    }
+                } finally {
+                    freeBuffers.add(frame);
+                }
+                return null;
+            }));
+            // Drop completed futures so the list stays short on long captures, keeping any error for close()
+            pending.removeIf(this::settle);
+        }
+
+        private boolean settle(Future<?> future) {
+            if (!future.isDone()) return false;
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        private void writePng(int[] frame, int index) throws IOException {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, width, height, frame, 0, width);
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(
+                    target.resolve(String.format("frame_%06d.png", index)).toFile())) {
+                // Favour deflate speed over size; flat-shaded frames still compress well
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0.9f);
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+
+        private void writeRaw(int[] frame) throws IOException {
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                for (int x = 0, o = 0; x < width; x++) {
+                    int p = frame[row + x];
+                    rawRow[o++] = (byte) (p >> 16);
+                    rawRow[o++] = (byte) (p >> 8);
+                    rawRow[o++] = (byte) p;
+                }
+                rawOut.write(rawRow);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                for (Future<?> future : pending) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) failure = e.getCause();
+                    }
+                }
+                if (rawOut != null) rawOut.close();
+                if (failure != null) {
+                    throw new IllegalStateException("Frame encoding failed", failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while flushing frames", e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                encoders.shutdown();
+            }
+        }
+    }
+
+    // Leaderboard class: high scores kept in an append-only, checksummed log plus a bounded
+    // in-memory top-K heap. The log is scanned once on open; all file I/O happens on one
+    // background thread, so submit() is a heap update and a queued append.
+    static class Leaderboard implements AutoCloseable {
+        static final int DEFAULT_CAPACITY = 10;
+        private static final int MAGIC = 0x4D4C4232; // "MLB2": records carry the world
+        private static final int MAGIC_V1 = 0x4D4C4231; // "MLB1": level only, read as world 1
+        private static final int MAX_NAME_BYTES = 64;
+        private static final int FIELD_BYTES = 4 + 8 + 4 + 4 + 8; // score, time, world, level, timestamp
+        private static final int FIELD_BYTES_V1 = FIELD_BYTES - 4;
+        private static final int MAX_PAYLOAD = 2 + MAX_NAME_BYTES + FIELD_BYTES;
+        // Rewrite the log down to the top-K once it holds this many records per kept entry
+        private static final int COMPACT_FACTOR = 64;
+
+        static final class Entry {
+            final String name;
+            final int score;
+            final double timeRemaining;
+            final int world;
+            final int level;
+            final long timestamp;
+
+            Entry(String name, int score, double timeRemaining, int world, int level, long timestamp) {
+                this.name = name;
+                this.score = score;
+                this.timeRemaining = timeRemaining;
+                this.world = world;
+                this.level = level;
+                this.timestamp = timestamp;
+            }
+        }
+
+        // Higher score ranks first; ties go to more time left, then the earlier run
+        private static final Comparator<Entry> RANKING = Comparator
+                .comparingInt((Entry e) -> e.score)
+                .thenComparingDouble(e -> e.timeRemaining)
+                .thenComparing(Comparator.comparingLong((Entry e) -> e.timestamp).reversed());
+
+        private final Path path;
+        private final int capacity;
+        private final PriorityQueue<Entry> top; // min-heap: the weakest kept entry is at the head
+        private final ExecutorService writer;
+        private FileChannel channel;
+        private final ByteBuffer record = ByteBuffer.allocate(8 + MAX_PAYLOAD);
+        private final CRC32 crc = new CRC32();
+        private long recordCount;
+
+        private Leaderboard(Path path, int capacity) {
+            this.path = path;
+            this.capacity = capacity;
+            this.top = new PriorityQueue<>(capacity + 1, RANKING);
+            this.writer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "leaderboard-writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        static Path defaultPath() {
+            return Paths.get(System.getProperty("user.home"), ".mario-jump", "highscores.log");
+        }
+
+        static Leaderboard open(Path path, int capacity) throws IOException {
+            Leaderboard board = new Leaderboard(path, capacity);
+            board.load();
+            return board;
+        }
+
+        synchronized void submit(String name, int score, double timeRemaining, int world, int level) {
+            Entry entry = new Entry(truncate(name), score, timeRemaining, world, level, System.currentTimeMillis());
+            offer(entry);
+            writer.execute(() -> append(entry));
+        }
+
+        // Best first
+        synchronized List<Entry> top() {
+            List<Entry> sorted = new ArrayList<>(top);
+            sorted.sort(RANKING.reversed());
+            return sorted;
+        }
+
+        @Override
+        public void close() {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(5, TimeUnit.SECONDS);
+                if (channel != null) channel.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("Failed to close high score log: " + e.getMessage());
+            }
+        }
+
+        private void offer(Entry entry) {
+            if (top.size() < capacity) {
+                top.add(entry);
+            } else if (RANKING.compare(entry, top.peek()) > 0) {
+                top.poll();
+                top.add(entry);
+            }
+        }
+
+        // Sequential scan. A torn final record (e.g. from a crash mid-append) is cut off; a complete record
+        // that fails its checks is skipped. A length that cannot be trusted leaves no way to find the next
+        // record, so the file is kept aside and the log restarts from the entries read before it.
+        private void load() throws IOException {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            if (channel.size() < 4) {
+                writeHeader(channel);
+                return;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            int magic = header.getInt(0);
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Not a high score log: " + path);
+            }
+            if (magic == MAGIC_V1) {
+                // Records of both layouts decode by their length, so the old ones stay where they are.
+                // The header is upgraded first: an older build would take the new records for damage.
+                header.clear();
+                header.putInt(0, MAGIC);
+                channel.write(header, 0);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            channel.position(4);
+            long good = 4;
+            int skipped = 0;
+            boolean unreadable = false;
+            while (!unreadable) {
+                int read = channel.read(buffer);
+                buffer.flip();
+                while (buffer.remaining() >= 8) {
+                    int start = buffer.position();
+                    int length = buffer.getInt(start);
+                    if (length < 0 || length > MAX_PAYLOAD) {
+                        unreadable = true;
+                        break;
+                    }
+                    if (buffer.remaining() < 8 + length) break;
+                    int checksum = buffer.getInt(start + 4);
+                    buffer.position(start + 8);
+                    Entry entry = decode(buffer, length, checksum);
+                    buffer.position(start + 8 + length);
+                    if (entry == null) {
+                        skipped++;
+                    } else {
+                        offer(entry);
+                        recordCount++;
+                    }
+                    good += 8 + length;
+                }
+                buffer.compact();
+                if (read < 0) break; // anything left over is a torn final record
+            }
+            if (skipped > 0) {
+                System.err.println("Skipped " + skipped + " damaged high score records in " + path);
+            }
+
+            if (unreadable) {
+                Path corrupt = path.resolveSibling(path.getFileName() + ".corrupt");
+                System.err.println("High score log " + path + " is damaged at byte " + good + "; kept as " + corrupt);
+                Files.copy(path, corrupt, StandardCopyOption.REPLACE_EXISTING);
+                compact();
+                return;
+            }
+            if (good < channel.size()) {
+                channel.truncate(good);
+            }
+            channel.position(good);
+
+            if (recordCount > (long) capacity * COMPACT_FACTOR) {
+                compact();
+            }
+        }
+
+        private Entry decode(ByteBuffer buffer, int length, int checksum) {
+            int start = buffer.position();
+            crc.reset();
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(start + length);
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) return null;
+
+            int nameLength = buffer.getShort() & 0xFFFF;
+            int fields = length - 2 - nameLength;
+            if (nameLength > MAX_NAME_BYTES || (fields != FIELD_BYTES && fields != FIELD_BYTES_V1)) return null;
+            byte[] nameBytes = new byte[nameLength];
+            buffer.get(nameBytes);
+            int score = buffer.getInt();
+            double timeRemaining = buffer.getDouble();
+            int world = fields == FIELD_BYTES ? buffer.getInt() : 1;
+            int level = buffer.getInt();
+            long timestamp = buffer.getLong();
+            return new Entry(new String(nameBytes, StandardCharsets.UTF_8), score, timeRemaining, world, level, timestamp);
+        }
+
+        // Runs on the writer thread
+        private void append(Entry entry) {
+            try {
+                encode(entry);
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                recordCount++;
+                if (recordCount > (long) capacity * COMPACT_FACTOR) {
+                    compact();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to record high score: " + e.getMessage());
+            }
+        }
+
+        private void encode(Entry entry) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            int length = 2 + name.length + FIELD_BYTES;
+            record.clear();
+            record.putInt(length);
+            record.putInt(0); // checksum, filled below
+            record.putShort((short) name.length);
+            record.put(name);
+            record.putInt(entry.score);
+            record.putDouble(entry.timeRemaining);
+            record.putInt(entry.world);
+            record.putInt(entry.level);
+            record.putLong(entry.timestamp);
+            record.flip();
+
+            crc.reset();
+            crc.update(record.duplicate().position(8));
+            record.putInt(4, (int) crc.getValue());
+        }
+
+        // Rewrites the log with only the kept entries, then swaps it in atomically
+        private void compact() throws IOException {
+            List<Entry> kept = top();
+            Path temp = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeHeader(out);
+                for (Entry entry : kept) {
+                    encode(entry);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            recordCount = kept.size();
+        }
+
+        private static void writeHeader(FileChannel out) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+        }
+
+        private static String truncate(String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length <= MAX_NAME_BYTES) return name;
+            String cut = name;
+            while (cut.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+                cut = cut.substring(0, cut.length() - 1);
+            }
+            return cut;
+        }
+    }
+
+    // SaveFile class: the on-disk form of a saved game. A 14-byte header (magic, format version, body
+    // length, CRC32 of the body) precedes the body from writeState. Files are replaced atomically, so a
+    // crash mid-save leaves the previous save intact.
+    static final class SaveFile {
+        static final int MAGIC = 0x4D535631; // "MSV1"
+        static final short VERSION = 1;
+        private static final int HEADER_BYTES = 4 + 2 + 4 + 4;
+
+        static Path defaultPath() {
+            return Paths.get(System.getProperty("user.home"), ".mario-jump", "autosave.sav");
+        }
+
+        // Writes the body's remaining bytes; its position is left unchanged
+        static void write(Path path, ByteBuffer body) throws IOException {
+            ByteBuffer data = body.duplicate();
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putShort(VERSION).putInt(data.remaining()).putInt((int) crc.getValue()).flip();
+
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer[] parts = { header, data };
+                while (data.hasRemaining()) {
+                    out.write(parts);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // The checked body, ready for loadState
+        static ByteBuffer read(Path path) throws IOException {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = in.size();
+                if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                    throw new IOException("Not a saved game: " + path);
+                }
+                ByteBuffer file = ByteBuffer.allocateDirect((int) size);
+                while (file.hasRemaining() && in.read(file) >= 0) {
+                    // keep reading
+                }
+                file.flip();
+                if (file.remaining() < HEADER_BYTES || file.getInt() != MAGIC) {
+                    throw new IOException("Not a saved game: " + path);
+                }
+                int version = file.getShort();
+                if (version > VERSION) {
+                    throw new IOException("Saved by a newer version (format " + version + ")");
+                }
+                int length = file.getInt();
+                int checksum = file.getInt();
+                if (length != file.remaining()) {
+                    throw new IOException("Truncated save: " + path);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(file.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Corrupt save: " + path);
+                }
+                return file.slice();
+            }
+        }
+    }
+
+    // Heatmap class: per-tile event counts for one level. Every cell is striped across several atomic
+    // arrays and a thread only increments its own stripe, so many simulations can share one map without
+    // contending; reads sum the stripes. Maps of any size merge cell by cell, and save as varints.
+    static final class Heatmap {
+        static final int PRESENCE = 0; // one count per frame spent in the tile
+        static final int DAMAGE = 1;
+        static final int DEATH = 2;
+        static final int PICKUP = 3;
+        static final int EVENTS = 4;
+        static final String[] EVENT_NAMES = {"presence", "damage", "death", "pickup"};
+        static final int ROWS = (GAME_HEIGHT + 100) / TILE_SIZE + 1; // down to where a fall is a death
+        private static final int MAGIC = 0x4D484D31; // "MHM1"
+        private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8;
+        private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+        final int columns, rows;
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final AtomicLong sessions = new AtomicLong();
+
+        Heatmap(int columns, int rows) {
+            this.columns = columns;
+            this.rows = rows;
+            for (int s = 0; s < STRIPES; s++) {
+                stripes[s] = new AtomicLongArray(EVENTS * rows * columns);
+            }
+        }
+
+        // Wide enough for a level ending at endX, plus the screen that is still visible past it
+        static Heatmap forLevel(double endX) {
+            return new Heatmap((int) Math.ceil((endX + GAME_WIDTH) / TILE_SIZE), ROWS);
+        }
+
+        void record(int event, double x, double y) {
+            int column = Math.min(Math.max((int) Math.floor(x / TILE_SIZE), 0), columns - 1);
+            int row = Math.min(Math.max((int) Math.floor(y / TILE_SIZE), 0), rows - 1);
+            stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)]
+                    .incrementAndGet(cell(event, column, row));
+        }
+
+        void addSession() {
+            sessions.incrementAndGet();
+        }
+
+        long sessions() {
+            return sessions.get();
+        }
+
+        long count(int event, int column, int row) {
+            if (column >= columns || row >= rows) return 0;
+            int cell = cell(event, column, row);
+            long total = 0;
+            for (AtomicLongArray stripe : stripes) {
+                total += stripe.get(cell);
+            }
+            return total;
+        }
+
+        long max(int event) {
+            long max = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    max = Math.max(max, count(event, column, row));
+                }
+            }
+            return max;
+        }
+
+        // Adds the other map's counts cell by cell; cells outside this map's bounds are dropped
+        void merge(Heatmap other) {
+            AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+            for (int event = 0; event < EVENTS; event++) {
+                for (int row = 0; row < Math.min(rows, other.rows); row++) {
+                    for (int column = 0; column < Math.min(columns, other.columns); column++) {
+                        long n = other.count(event, column, row);
+                        if (n != 0) stripe.addAndGet(cell(event, column, row), n);
+                    }
+                }
+            }
+            sessions.addAndGet(other.sessions());
+        }
+
+        // Tints each visited tile from transparent to red on a log scale of the busiest tile;
+        // history (may be null) is drawn summed with this map
+        void draw(Surface gc, int event, Heatmap history) {
+            long max = Math.max(max(event), 1) + (history != null ? history.max(event) : 0);
+            double scale = Math.log1p(max);
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    long n = count(event, column, row) + (history != null ? history.count(event, column, row) : 0);
+                    if (n == 0) continue;
+                    double heat = Math.log1p(n) / scale;
+                    gc.setFill(Color.color(1.0, 1.0 - heat, 0.0, 0.15 + 0.45 * heat));
+                    gc.fillRect(column * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                }
+            }
+        }
+
+        // Header (magic, columns, rows, events, sessions), then one LEB128 varint per cell, then a CRC32.
+        // Most cells are zero, so a level's map is a few kilobytes.
+        ByteBuffer encode() {
+            int cells = EVENTS * rows * columns;
+            ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + cells * 10 + 4);
+            out.putInt(MAGIC).putInt(columns).putInt(rows).putInt(EVENTS).putLong(sessions());
+            for (int event = 0; event < EVENTS; event++) {
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        long n = count(event, column, row);
+                        while ((n & ~0x7FL) != 0) {
+                            out.put((byte) (n & 0x7F | 0x80));
+                            n >>>= 7;
+                        }
+                        out.put((byte) n);
+                    }
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out.array(), 0, out.position());
+            out.putInt((int) crc.getValue());
+            out.flip();
+            return out;
+        }
+
+        static Heatmap decode(ByteBuffer in) throws IOException {
+            if (in.remaining() < HEADER_BYTES + 4 || in.getInt(in.position()) != MAGIC) {
+                throw new IOException("Not a heatmap");
+            }
+            ByteBuffer body = in.duplicate();
+            body.limit(in.limit() - 4);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != in.getInt(in.limit() - 4)) {
+                throw new IOException("Heatmap checksum mismatch");
+            }
+            in.getInt();
+            int columns = in.getInt(), rows = in.getInt(), events = in.getInt();
+            long sessions = in.getLong();
+            if (columns <= 0 || rows <= 0 || events <= 0 || (long) columns * rows * events > in.remaining()) {
+                throw new IOException("Corrupt heatmap header");
+            }
+            Heatmap map = new Heatmap(columns, rows);
+            map.sessions.set(sessions);
+            for (int event = 0; event < events; event++) {
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        long n = 0;
+                        for (int shift = 0; ; shift += 7) {
+                            if (in.remaining() <= 4 || shift > 63) throw new IOException("Corrupt heatmap counts");
+                            byte b = in.get();
+                            n |= (long) (b & 0x7F) << shift;
+                            if (b >= 0) break;
+                        }
+                        // Event kinds added by a later version are skipped
+                        if (event < EVENTS) map.stripes[0].set(map.cell(event, column, row), n);
+                    }
+                }
+            }
+            return map;
+        }
+
+        static Heatmap read(Path file) throws IOException {
+            return decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+        }
+
+        // Adds this map to the one stored in the file. Other processes may be flushing into the same
+        // directory, so the read-merge-write runs under a lock file and the result is moved in atomically.
+        void mergeInto(Path file) throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockChannel.lock(); // released when the channel closes
+                Heatmap merged = this;
+                if (Files.exists(file)) {
+                    Heatmap stored = null;
+                    try {
+                        stored = read(file);
+                    } catch (IOException e) {
+                        // A damaged file would block every later flush: move it aside for inspection and
+                        // start that level's history over
+                        Path corrupt = file.resolveSibling(file.getFileName() + ".corrupt");
+                        System.err.println("Moving damaged heatmap " + file + " to " + corrupt + ": " + e.getMessage());
+                        Files.move(file, corrupt, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    if (stored != null) {
+                        merged = new Heatmap(Math.max(columns, stored.columns), Math.max(rows, stored.rows));
+                        merged.merge(stored);
+                        merged.merge(this);
+                    }
+                }
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer bytes = merged.encode();
+                    while (bytes.hasRemaining()) {
+                        out.write(bytes);
+                    }
+                    out.force(true);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        private int cell(int event, int column, int row) {
+            return (event * rows + row) * columns + column;
+        }
+    }
+
+    // Telemetry class: the heatmaps recorded by one or more games, one per level. Games on any thread
+    // can share an instance; each play of a level counts as one session of that level's map.
+    static class Telemetry {
+        private final ConcurrentHashMap<String, Heatmap> levels = new ConcurrentHashMap<>();
+
+        static Path defaultDirectory() {
+            return Paths.get(System.getProperty("user.home"), ".mario-jump", "heatmaps");
+        }
+
+        static Path file(Path directory, int world, int level) {
+            return directory.resolve(world + "-" + level + ".heat");
+        }
+
+        Heatmap startLevel(int world, int level, double endX) {
+            Heatmap map = levels.computeIfAbsent(world + "-" + level, k -> Heatmap.forLevel(endX));
+            map.addSession();
+            return map;
+        }
+
+        // Merges everything into the per-level files in the directory and starts over; call it once the
+        // games sharing this instance have stopped recording
+        synchronized void flush(Path directory) throws IOException {
+            for (Map.Entry<String, Heatmap> entry : levels.entrySet()) {
+                entry.getValue().mergeInto(directory.resolve(entry.getKey() + ".heat"));
+            }
+            levels.clear();
+        }
+    }
+
+    // Level solver: breadth-first search over player states, stepped by the fixed-point physics so each
+    // one moves exactly as in the game. Each frontier layer is expanded on a work-stealing pool, then
+    // pruned on the calling thread: states are grouped into coarse cells, and a state is dropped only
+    // when a state in its cell, on this frame or an earlier one, was at least as far right. Layers are
+    // one held action apart, so the first layer to reach the end gives the fastest route the pruning
+    // keeps. Enemies, power-ups and block bumps are not simulated, and kinematic platforms follow
+    // their schedule but fallers never drop.
+    static class LevelSolver {
+        static final int FRAMES_PER_ACTION = 4;
+        // Cell resolution, as shifts of 16.16 values: 8px positions, 1px and 2px per frame speeds
+        private static final int POSITION_SHIFT = Fixed.SHIFT + 3;
+        private static final int SPEED_X_SHIFT = Fixed.SHIFT;
+        private static final int SPEED_Y_SHIFT = Fixed.SHIFT + 1;
+        static final int[] ACTIONS;
+        private static final int CHUNK = 64;
+
+        static {
+            List<Integer> actions = new ArrayList<>();
+            for (int move : new int[] { 0, INPUT_LEFT, INPUT_RIGHT }) {
+                for (int jump : new int[] { 0, INPUT_JUMP }) {
+                    for (int run : new int[] { 0, INPUT_RUN }) {
+                        actions.add(move | jump | run);
+                    }
+                }
+            }
+            ACTIONS = actions.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private final int world, level;
+        private final LevelDefinition definition;
+        private final PowerState powerState;
+        private final int maxFrames = (int) Math.round(GAME_TIME_LIMIT / GameEnvironment.STEP_TIME);
+        private final ForkJoinPool pool;
+        private final ThreadLocal<MarioGameEnhanced> simulators;
+
+        // Kinematic platform positions for every frame, precomputed so any state can be stepped at any time
+        private final int[] moverIndex;
+        private final double[][] moverX, moverY;
+
+        private final ProgressMap visited = new ProgressMap(1 << 16);
+        private final boolean[] blockReached, coinReached;
+
+        // Every node ever created: how it was reached. Frontier state lives in Layer.
+        private int[] parent = new int[1 << 16];
+        private byte[] action = new byte[1 << 16];
+        private int nodeCount = 0;
+
+        private int goalFrame = Integer.MAX_VALUE;
+        private int goalNode = -1;
+        private int goalAction = -1;
+
+        LevelSolver(int world, int level, LevelDefinition definition, PowerState powerState, int threads) {
+            this.world = world;
+            this.level = level;
+            this.definition = definition;
+            this.powerState = powerState;
+            this.pool = new ForkJoinPool(threads);
+            this.simulators = ThreadLocal.withInitial(this::newSimulator);
+
+            MarioGameEnhanced game = newSimulator();
+            TerrainIndex t = game.terrain;
+            moverIndex = Arrays.copyOf(t.movers, t.moverCount);
+            moverX = new double[moverIndex.length][maxFrames + 1];
+            moverY = new double[moverIndex.length][maxFrames + 1];
+            for (int m = 0; m < moverIndex.length; m++) {
+                Platform platform = game.platforms.get(moverIndex[m]);
+                moverX[m][0] = platform.x;
+                moverY[m][0] = platform.y;
+                for (int f = 1; f <= maxFrames; f++) {
+                    platform.move(GameEnvironment.STEP_TIME, false);
+                    moverX[m][f] = platform.x;
+                    moverY[m][f] = platform.y;
+                }
+            }
+            blockReached = new boolean[game.questionBlocks.size()];
+            coinReached = new boolean[game.coins.count];
+        }
+
+        private MarioGameEnhanced newSimulator() {
+            MarioGameEnhanced game = new MarioGameEnhanced(true);
+            game.nextLevel = CompletableFuture.completedFuture(null); // never preload
+            game.installLevel(game.prepareLevel(world, level, definition));
+            game.player = game.new Player(100, 400);
+            game.enemies.clear();
+            return game;
+        }
+
+        static final class Result {
+            int frames = -1; // -1 when the end cannot be reached in time
+            List<Integer> route = new ArrayList<>(); // one action per FRAMES_PER_ACTION frames
+            long states;
+            List<QuestionBlock> unreachableBlocks = new ArrayList<>();
+            List<double[]> unreachableCoins = new ArrayList<>();
+        }
+
+        Result solve() {
+            MarioGameEnhanced start = simulators.get();
+            Layer frontier = new Layer();
+            Player p = start.player;
+            p.powerState = powerState;
+            p.height = powerState == PowerState.SMALL ? 32 : 48;
+            p.y += 32 - p.height;
+            frontier.add(Fixed.of(p.x), Fixed.of(p.y), 0, 0, flags(false, false, powerState), -1, addNode(-1, -1));
+
+            int frame = 0;
+            try {
+                while (frontier.count > 0 && frame + FRAMES_PER_ACTION <= maxFrames) {
+                    Layer[] out = new Layer[(frontier.count + CHUNK - 1) / CHUNK];
+                    pool.invoke(new Expand(frontier, out, frame, 0, frontier.count));
+
+                    Layer next = new Layer();
+                    for (Layer chunk : out) {
+                        next.append(chunk, this);
+                    }
+                    frontier = next;
+                    frame += FRAMES_PER_ACTION;
+                }
+            } finally {
+                pool.shutdown();
+            }
+            return report(start);
+        }
+
+        private Result report(MarioGameEnhanced game) {
+            Result result = new Result();
+            result.states = nodeCount;
+            if (goalNode >= 0) {
+                result.frames = goalFrame;
+                result.route.add(goalAction);
+                for (int n = goalNode; parent[n] >= 0; n = parent[n]) {
+                    result.route.add(0, ACTIONS[action[n]]);
+                }
+            }
+            for (int i = 0; i < blockReached.length; i++) {
+                if (!blockReached[i]) result.unreachableBlocks.add(game.questionBlocks.get(i));
+            }
+            for (int i = 0; i < coinReached.length; i++) {
+                if (!coinReached[i]) result.unreachableCoins.add(new double[] { game.coins.x[i], game.coins.y[i] });
+            }
+            return result;
+        }
+
+        // Only touched between layers, on the calling thread
+        private int addNode(int parentNode, int actionIndex) {
+            if (nodeCount == parent.length) {
+                parent = Arrays.copyOf(parent, nodeCount * 2);
+                action = Arrays.copyOf(action, nodeCount * 2);
             }
+            parent[nodeCount] = parentNode;
+            action[nodeCount] = (byte) actionIndex;
+            return nodeCount++;
         }
-    }
 
-    // Enemy base class
-    abstract class Enemy extends GameObject {
-        double velX = -1;
-        boolean dead = false;
-        double startX;
+        private synchronized void reachedGoal(int frame, int node, int input) {
+            if (frame < goalFrame) {
+                goalFrame = frame;
+                goalNode = node;
+                goalAction = input;
+            }
+        }
 
-        public Enemy(double x, double y, double width, double height) {
-            super(x, y, width, height);
-            this.startX = x;
+        private static int flags(boolean onGround, boolean running, PowerState power) {
+            return (onGround ? 1 : 0) | (running ? 2 : 0) | power.ordinal() << 2;
         }
 
-        public void update(double deltaTime) {
-            if (dead) return;
+        // The state's cell: positions to 8px, velocities to one or two pixels per frame. Cells only group
+        // states for the progress check; two states sharing one can still both be kept.
+        private static long key(int x, int y, int vx, int vy, int flags, int support) {
+            long k = (x >> POSITION_SHIFT) & 0xFFFF;
+            k = k << 12 | (((y >> POSITION_SHIFT) + 1024) & 0xFFF);
+            k = k << 6 | (((vx >> SPEED_X_SHIFT) + 32) & 0x3F);
+            k = k << 7 | (((vy >> SPEED_Y_SHIFT) + 64) & 0x7F);
+            k = k << 4 | flags;
+            k = k << 11 | ((support + 1) & 0x7FF);
+            return k;
+        }
 
-            x += velX;
+        // Moves kinematic platforms to where they are on the given frame
+        private void setFrame(MarioGameEnhanced game, int frame) {
+            for (int m = 0; m < moverIndex.length; m++) {
+                Platform platform = game.platforms.get(moverIndex[m]);
+                int previous = Math.max(frame - 1, 0);
+                platform.x = moverX[m][frame];
+                platform.y = moverY[m][frame];
+                platform.dx = platform.x - moverX[m][previous];
+                platform.dy = platform.y - moverY[m][previous];
+                game.terrain.sync(moverIndex[m], platform);
+            }
+        }
 
-            // Check platform collisions
-            boolean onPlatform = false;
-            for (Platform platform : platforms) {
-                if (intersects(platform)) {
-                    if (velX > 0) {
-                        x = platform.x - width;
-                        velX = -velX;
-                    } else {
-                        x = platform.x + platform.width;
-                        velX = -velX;
+        private void expand(Layer in, int i, int frame, Layer out) {
+            MarioGameEnhanced game = simulators.get();
+            Player p = game.player;
+            for (int a = 0; a < ACTIONS.length; a++) {
+                int input = ACTIONS[a];
+                setFrame(game, frame);
+                game.fixedPhysics.syncTerrain();
+                p.x = Fixed.toDouble(in.x[i]);
+                p.y = Fixed.toDouble(in.y[i]);
+                p.velX = Fixed.toDouble(in.vx[i]);
+                p.velY = Fixed.toDouble(in.vy[i]);
+                p.onGround = (in.flags[i] & 1) != 0;
+                p.running = (in.flags[i] & 2) != 0;
+                p.powerState = POWER_STATES[in.flags[i] >> 2];
+                p.height = p.powerState == PowerState.SMALL ? 32 : 48;
+                p.width = p.powerState == PowerState.SMALL ? 24 : 32;
+                p.support = in.support[i];
+                p.jumpRequested = false;
+                p.jumpBufferTime = 0;
+
+                boolean alive = true;
+                for (int k = 1; k <= FRAMES_PER_ACTION && alive; k++) {
+                    setFrame(game, frame + k);
+                    game.fixedPhysics.stepPlayer(input, GameEnvironment.STEP_TIME);
+                    markReached(game, p);
+                    if (p.x >= game.levelEndX) {
+                        reachedGoal(frame + k, in.node[i], input);
+                        alive = false;
+                    } else if (p.y > GAME_HEIGHT + 100) {
+                        alive = false;
                     }
                 }
+                if (!alive) continue;
 
-                // Check if enemy is on a platform
-                if (y + height <= platform.y + 5 && y + height >= platform.y - 5 &&
-                        x + width/2 >= platform.x && x + width/2 <= platform.x + platform.width)
-                {
-                    onPlatform = true;
-                    break;
+                out.add(Fixed.of(p.x), Fixed.of(p.y), Fixed.of(p.velX), Fixed.of(p.velY),
+                        flags(p.onGround, p.running, p.powerState), p.support, in.node[i]);
+                out.action[out.count - 1] = (byte) a;
+            }
+        }
+
+        // The game's own tests: a block is hit from below, a coin by any overlap
+        private void markReached(MarioGameEnhanced game, Player p) {
+            for (int b = 0; b < blockReached.length; b++) {
+                if (blockReached[b]) continue;
+                QuestionBlock block = game.questionBlocks.get(b);
+                if (p.velY <= 0 && p.intersects(block) && p.y < block.y + block.height) {
+                    blockReached[b] = true;
+                }
+            }
+            EntityStore coins = game.coins;
+            for (int c = 0; c < coinReached.length; c++) {
+                if (!coinReached[c] && p.intersects(coins, c)) {
+                    coinReached[c] = true;
                 }
             }
+        }
 
-            // Turn around at edges if not on platform
-            if (!onPlatform) {
-                velX = -velX;
+        private class Expand extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Layer in;
+            private final Layer[] out;
+            private final int frame, from, to;
+
+            Expand(Layer in, Layer[] out, int frame, int from, int to) {
+                this.in = in;
+                this.out = out;
+                this.frame = frame;
+                this.from = from;
+                this.to = to;
             }
 
-            // Boundary checks
-            if (x < startX - 200) {
-                velX = Math.abs(velX);
-            } else if (x > startX + 200) {
-                velX = -Math.abs(velX);
+            @Override
+            protected void compute() {
+                if (to - from > CHUNK) {
+                    // Split on chunk boundaries so each output slot is written by exactly one leaf
+                    int chunks = (to - from + CHUNK - 1) / CHUNK;
+                    int mid = from + chunks / 2 * CHUNK;
+                    invokeAll(new Expand(in, out, frame, from, mid), new Expand(in, out, frame, mid, to));
+                    return;
+                }
+                Layer result = new Layer();
+                for (int i = from; i < to; i++) {
+                    expand(in, i, frame, result);
+                }
+                out[from / CHUNK] = result;
             }
         }
 
-        public void stomp() {
-            dead = true;
-        }
+        // Frontier states in flat arrays; node is the state's parent until append gives it its own id
+        static final class Layer {
+            int count = 0;
+            int[] x = new int[16], y = new int[16], vx = new int[16], vy = new int[16];
+            int[] flags = new int[16], support = new int[16], node = new int[16];
+            byte[] action = new byte[16];
+
+            void add(int x, int y, int vx, int vy, int flags, int support, int node) {
+                if (count == this.x.length) {
+                    int n = count * 2;
+                    this.x = Arrays.copyOf(this.x, n);
+                    this.y = Arrays.copyOf(this.y, n);
+                    this.vx = Arrays.copyOf(this.vx, n);
+                    this.vy = Arrays.copyOf(this.vy, n);
+                    this.flags = Arrays.copyOf(this.flags, n);
+                    this.support = Arrays.copyOf(this.support, n);
+                    this.node = Arrays.copyOf(this.node, n);
+                    this.action = Arrays.copyOf(this.action, n);
+                }
+                this.x[count] = x;
+                this.y[count] = y;
+                this.vx[count] = vx;
+                this.vy[count] = vy;
+                this.flags[count] = flags;
+                this.support[count] = support;
+                this.node[count] = node;
+                count++;
+            }
 
-        public boolean isDead() {
-            return dead;
+            // Takes the chunk's states that advance their cell, in chunk order so the result is the same
+            // however the pool scheduled the expansion
+            void append(Layer chunk, LevelSolver solver) {
+                for (int i = 0; i < chunk.count; i++) {
+                    long cell = key(chunk.x[i], chunk.y[i], chunk.vx[i], chunk.vy[i], chunk.flags[i], chunk.support[i]);
+                    if (!solver.visited.advance(cell, chunk.x[i])) continue;
+                    add(chunk.x[i], chunk.y[i], chunk.vx[i], chunk.vy[i], chunk.flags[i], chunk.support[i],
+                            solver.addNode(chunk.node[i], chunk.action[i]));
+                }
+            }
         }
-    }
 
-    // Goomba enemy
-    class Goomba extends Enemy {
-        public Goomba(double x, double y) {
-            super(x, y, 24, 24);
-        }
+        // Open-addressing map from a state's cell to the furthest x reached in it so far. Only touched
+        // between layers, on the calling thread.
+        static final class ProgressMap {
+            private long[] keys; // cell key + 1, so 0 marks an empty slot
+            private int[] furthest;
+            private int size = 0;
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            if (dead) return;
+            ProgressMap(int capacity) {
+                keys = new long[capacity];
+                furthest = new int[capacity];
+            }
 
-            gc.setFill(Color.BROWN);
-            gc.fillOval(x, y, width, height);
-            gc.setFill(Color.BLACK);
-            gc.fillOval(x + 2, y + 2, width - 4, height - 4);
+            int size() {
+                return size;
+            }
 
-            // Eyes
-            gc.setFill(Color.BLACK);
-            gc.fillOval(x + 6, y + 6, 4, 4);
-            gc.fillOval(x + 14, y + 6, 4, 4);
+            // True when the cell is new or x is further right than anything before it there
+            boolean advance(long key, int x) {
+                if ((size + 1) * 2 > keys.length) grow();
+                long stored = key + 1;
+                int mask = keys.length - 1;
+                long h = stored * 0x9E3779B97F4A7C15L;
+                for (int i = (int) (h ^ (h >>> 32)) & mask; ; i = (i + 1) & mask) {
+                    if (keys[i] == 0) {
+                        keys[i] = stored;
+                        furthest[i] = x;
+                        size++;
+                        return true;
+                    }
+                    if (keys[i] == stored) {
+                        if (x <= furthest[i]) return false;
+                        furthest[i] = x;
+                        return true;
+                    }
+                }
+            }
 
-            // Frown
-            gc.strokeLine(x + 8, y + 16, x + 16, y + 16);
+            private void grow() {
+                long[] oldKeys = keys;
+                int[] oldFurthest = furthest;
+                keys = new long[oldKeys.length * 2];
+                furthest = new int[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) advance(oldKeys[i] - 1, oldFurthest[i]);
+                }
+            }
         }
     }
 
-    // Coin class
-    class Coin extends GameObject {
-        private double animationTimer = 0;
+    // PhysicsFuzzer class: plays random and mutated input traces through headless games on every core,
+    // checking invariants after each tick. A trace that gets further than any before it joins a shared
+    // corpus that later traces are mutated from. The first failure of each invariant is shrunk by delta
+    // debugging to a short trace that replays it.
+    static class PhysicsFuzzer {
+        static final int TRACE_FRAMES = 900; // 15 seconds of play
+        private static final int CORPUS_BUCKET = 64; // px of progress per corpus slot
+        private static final double EPSILON = 0.5;
+        private static final double OVERLAP_TOLERANCE = 1; // corner clips under a pixel are left alone
+        private static final double ENEMY_MAX_SPEED = SHELL_SPEED;
+
+        static final class Failure {
+            final String invariant;
+            final String detail;
+            final int[] trace;
+
+            Failure(String invariant, String detail, int[] trace) {
+                this.invariant = invariant;
+                this.detail = detail;
+                this.trace = trace;
+            }
+        }
+
+        // First violation of a play: the tick it happened on and "invariant: detail"
+        private static final class Violation {
+            final int frame;
+            final String message;
+
+            Violation(int frame, String message) {
+                this.frame = frame;
+                this.message = message;
+            }
 
-        public Coin(double x, double y) {
-            super(x, y, 16, 16);
+            String invariant() {
+                return message.substring(0, message.indexOf(':'));
+            }
         }
 
-        public void update(double deltaTime) {
-            animationTimer += deltaTime * 8;
+        private final boolean fixedPoint;
+        private final AtomicReferenceArray<int[]> corpus = new AtomicReferenceArray<>(256);
+        private final AtomicInteger furthestSlot = new AtomicInteger(-1);
+        private final LongAdder ticks = new LongAdder();
+        private final LongAdder traces = new LongAdder();
+        private final Set<String> reported = ConcurrentHashMap.newKeySet();
+        private final List<Failure> failures = new CopyOnWriteArrayList<>();
+
+        PhysicsFuzzer(boolean fixedPoint) {
+            this.fixedPoint = fixedPoint;
         }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            double scale = Math.abs(Math.sin(animationTimer)) * 0.3 + 0.7;
+        List<Failure> run(int threads, double seconds, long seed) {
+            long deadline = System.nanoTime() + (long) (seconds * 1e9);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                long workerSeed = seed + t;
+                workers[t] = new Thread(() -> work(workerSeed, deadline), "fuzz-" + t);
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return failures;
+        }
 
-            gc.setFill(Color.GOLD);
-            gc.fillOval(x + width * (1 - scale) / 2, y, width * scale, height);
+        long ticks() {
+            return ticks.sum();
+        }
 
-            gc.setFill(Color.ORANGE);
-            gc.fillOval(x + width * (1 - scale) / 2 + 2, y + 2, (width - 4) * scale, height - 4);
+        long traces() {
+            return traces.sum();
         }
-    }
 
-    // PowerUp class
-    class PowerUp extends GameObject {
-        PowerUpType type;
-        double velX = 2;
-        double velY = 0;
+        int corpusSize() {
+            int n = 0;
+            for (int i = 0; i < corpus.length(); i++) {
+                if (corpus.get(i) != null) n++;
+            }
+            return n;
+        }
 
-        public PowerUp(double x, double y, PowerUpType type) {
-            super(x, y, 24, 24);
-            this.type = type;
-            if (type == PowerUpType.MUSHROOM) {
-                this.velY = -4; // Initial upward velocity when spawned
+        private void work(long seed, long deadline) {
+            SplittableRandom random = new SplittableRandom(seed);
+            MarioGameEnhanced game = new MarioGameEnhanced(fixedPoint);
+            Checker checker = new Checker();
+            while (System.nanoTime() < deadline) {
+                int[] trace = nextTrace(random);
+                Violation violation = play(game, checker, trace, true);
+                traces.increment();
+                if (violation != null && reported.add(violation.invariant())) {
+                    int[] small = minimize(game, checker, Arrays.copyOf(trace, violation.frame + 1), violation.invariant());
+                    Violation replayed = play(game, checker, small, false);
+                    failures.add(new Failure(replayed.invariant(), replayed.message, small));
+                }
             }
         }
 
-        public void update(double deltaTime) {
-            if (type == PowerUpType.MUSHROOM) {
-                x += velX;
-                y += velY;
-                velY += GRAVITY * 0.5; // Lighter gravity for power-ups
-
-                // Platform collisions for mushroom
-                for (Platform platform : platforms) {
-                    if (intersects(platform)) {
-                        if (velY > 0 && y < platform.y) {
-                            y = platform.y - height;
-                            velY = 0;
-                        } else if (velX > 0 && x < platform.x) {
-                            x = platform.x - width;
-                            velX = -velX;
-                        } else if (velX < 0 && x > platform.x) {
-                            x = platform.x + platform.width;
-                            velX = -velX;
-                        }
-                    }
+        // Plays a trace from a fresh 1-1 and returns its first violation, or null
+        private Violation play(MarioGameEnhanced game, Checker checker, int[] trace, boolean explore) {
+            game.restartGame();
+            checker.start(game);
+            double furthest = 0;
+            int frame = 0;
+            try {
+                for (; frame < trace.length && !game.gameOver && !game.levelComplete; frame++) {
+                    game.update(GameEnvironment.STEP_TIME, trace[frame]);
+                    String failed = checker.check(game);
+                    if (failed != null) return new Violation(frame, failed);
+                    furthest = Math.max(furthest, game.player.x + (game.level - 1) * game.levelEndX);
                 }
+            } catch (RuntimeException e) {
+                return new Violation(frame, "exception: " + e);
+            } finally {
+                ticks.add(frame);
             }
+
+            if (explore) {
+                int slot = Math.min((int) (furthest / CORPUS_BUCKET), corpus.length() - 1);
+                if (corpus.compareAndSet(slot, null, trace)) {
+                    furthestSlot.accumulateAndGet(slot, Math::max);
+                }
+            }
+            return null;
         }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            switch (type) {
-                case MUSHROOM:
-                    // Mushroom cap
-                    gc.setFill(Color.RED);
-                    gc.fillOval(x, y, width, height * 0.6);
-                    // White spots
-                    gc.setFill(Color.WHITE);
-                    gc.fillOval(x + 4, y + 4, 4, 4);
-                    gc.fillOval(x + 14, y + 8, 4, 4);
-                    // Stem
-                    gc.setFill(Color.BEIGE);
-                    gc.fillRect(x + width/3, y + height * 0.4, width/3, height * 0.6);
+        // A quarter fresh traces; the rest mutate a corpus trace, favouring none over the others
+        private int[] nextTrace(SplittableRandom random) {
+            int[] parent = random.nextInt(4) == 0 ? null : pickCorpus(random);
+            int[] trace = parent == null ? new int[TRACE_FRAMES] : parent.clone();
+            if (parent == null) {
+                fillRuns(trace, 0, TRACE_FRAMES, random);
+                return trace;
+            }
+            int from = random.nextInt(TRACE_FRAMES);
+            int to = Math.min(from + 1 + random.nextInt(120), TRACE_FRAMES);
+            switch (random.nextInt(3)) {
+                case 0:
+                    fillRuns(trace, from, to, random);
                     break;
-                case FIRE_FLOWER:
-                    // Stem
-                    gc.setFill(Color.GREEN);
-                    gc.fillRect(x + width/2 - 2, y + height/2, 4, height/2);
-                    // Petals
-                    gc.setFill(Color.RED);
-                    gc.fillOval(x + 4, y + 4, 8, 8);
-                    gc.fillOval(x + 12, y + 4, 8, 8);
-                    gc.fillOval(x + 8, y, 8, 8);
-                    gc.fillOval(x + 8, y + 8, 8, 8);
-                    // Center
-                    gc.setFill(Color.YELLOW);
-                    gc.fillOval(x + 8, y + 4, 8, 8);
+                case 1:
+                    // Toggle one button over a span
+                    int button = 1 << random.nextInt(5);
+                    for (int i = from; i < to; i++) trace[i] ^= button;
+                    break;
+                default:
+                    // Crossover: another trace's inputs from here on
+                    int[] other = pickCorpus(random);
+                    if (other != null) System.arraycopy(other, from, trace, from, TRACE_FRAMES - from);
                     break;
             }
+            return trace;
         }
-    }
 
-    // QuestionBlock class
-    class QuestionBlock extends GameObject {
-        PowerUpType powerUpType;
-        boolean used = false;
-        private double animationTimer = 0;
-
-        public QuestionBlock(double x, double y, PowerUpType powerUpType) {
-            super(x, y, TILE_SIZE, TILE_SIZE);
-            this.powerUpType = powerUpType;
+        private int[] pickCorpus(SplittableRandom random) {
+            int top = furthestSlot.get();
+            if (top < 0) return null;
+            for (int slot = random.nextInt(top + 1); slot >= 0; slot--) {
+                int[] trace = corpus.get(slot);
+                if (trace != null) return trace;
+            }
+            return null;
         }
 
-        public void update(double deltaTime) {
-            animationTimer += deltaTime * 4;
+        // Inputs held for a few frames at a time, the way a player presses buttons
+        private static void fillRuns(int[] trace, int from, int to, SplittableRandom random) {
+            for (int i = from; i < to; ) {
+                int input = random.nextInt(1 << 5);
+                for (int run = 1 + random.nextInt(30); run > 0 && i < to; run--) {
+                    trace[i++] = input;
+                }
+            }
         }
 
-        public void hit() {
-            if (!used) {
-                used = true;
+        // Delta debugging: drop ever smaller spans of ticks while the same invariant still fails, then
+        // clear the inputs of every span that can be idle
+        private int[] minimize(MarioGameEnhanced game, Checker checker, int[] trace, String invariant) {
+            for (int span = Integer.highestOneBit(trace.length); span >= 1; span /= 2) {
+                for (int at = 0; at + span <= trace.length; ) {
+                    int[] candidate = new int[trace.length - span];
+                    System.arraycopy(trace, 0, candidate, 0, at);
+                    System.arraycopy(trace, at + span, candidate, at, candidate.length - at);
+                    Violation v = candidate.length > 0 ? play(game, checker, candidate, false) : null;
+                    if (v != null && v.invariant().equals(invariant)) {
+                        trace = Arrays.copyOf(candidate, v.frame + 1);
+                    } else {
+                        at += span;
+                    }
+                }
+            }
+            for (int span = Integer.highestOneBit(trace.length); span >= 1; span /= 2) {
+                for (int at = 0; at < trace.length; at += span) {
+                    int end = Math.min(at + span, trace.length);
+                    int[] candidate = trace.clone();
+                    Arrays.fill(candidate, at, end, 0);
+                    if (Arrays.equals(candidate, trace)) continue;
+                    Violation v = play(game, checker, candidate, false);
+                    if (v != null && v.invariant().equals(invariant)) {
+                        trace = Arrays.copyOf(candidate, v.frame + 1);
+                    }
+                }
             }
+            return trace;
         }
 
-        public PowerUp spawnPowerUp() {
-            if (powerUpType == PowerUpType.COIN) {
-                return null; // Coins are handled directly in collision
+        // The invariants, with what they compare against from the previous tick
+        static final class Checker {
+            private PreparedLevel level;
+            private double timer;
+            private int terrainCount, blockCount, pipeCount, enemyCount, coinCount, lives;
+            private double px, py, pw, ph;
+            private double[] enemyVelX = new double[0];
+            private boolean[] enemyTurned = new boolean[0];
+            private long[] hitMask = new long[1];
+
+            void start(MarioGameEnhanced game) {
+                level = null;
             }
-            return new PowerUp(x, y - 24, powerUpType);
-        }
 
-        public boolean isUsed() {
-            return used;
-        }
+            // null, or "invariant: detail"
+            String check(MarioGameEnhanced game) {
+                Player p = game.player;
+                TerrainIndex t = game.terrain;
+                EntityStore e = game.enemies;
+                boolean continuing = game.currentLevel == level && game.lives == lives;
 
-        public void reset() {
-            used = false;
-        }
+                if (!Double.isFinite(p.x) || !Double.isFinite(p.y) || !Double.isFinite(p.velX) || !Double.isFinite(p.velY)) {
+                    return "finite: player at (" + p.x + ", " + p.y + ") moving (" + p.velX + ", " + p.velY + ")";
+                }
+                if (Math.abs(p.velX) > Player.RUN_MAX_SPEED + EPSILON ||
+                        p.velY < -Player.RUN_JUMP_SPEED - EPSILON || p.velY > Player.MAX_FALL_SPEED + EPSILON) {
+                    return "velocity: player moving (" + p.velX + ", " + p.velY + ")";
+                }
+                for (int i = 0; i < e.count; i++) {
+                    if (!(Math.abs(e.velX[i]) <= ENEMY_MAX_SPEED)) {
+                        return "velocity: enemy " + i + " moving " + e.velX[i];
+                    }
+                }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            if (used) {
-                // Empty block
-                gc.setFill(Color.DARKGRAY);
-                gc.fillRect(x, y, width, height);
-                gc.setFill(Color.GRAY);
-                gc.strokeRect(x, y, width, height);
-            } else {
-                // Question block with animation
-                double brightness = Math.sin(animationTimer) * 0.2 + 0.8;
-                Color blockColor = Color.color(1.0 * brightness, 0.8 * brightness, 0.0);
+                // Solid terrain never holds the player after resolution, and is never passed through. Only
+                // terrain touching the box swept since the last tick can fail either.
+                double sweepX = continuing ? Math.min(px, p.x) : p.x, sweepY = continuing ? Math.min(py, p.y) : p.y;
+                double sweepW = (continuing ? Math.max(px + pw, p.x + p.width) : p.x + p.width) - sweepX;
+                double sweepH = (continuing ? Math.max(py + ph, p.y + p.height) : p.y + p.height) - sweepY;
+                hitMask = CollisionKernel.ensureCapacity(hitMask, t.count);
+                CollisionKernel.overlapMask(sweepX, sweepY, sweepW, sweepH, t.x, t.y, t.width, t.height, t.count, hitMask);
+                for (int i = CollisionKernel.firstHit(hitMask, t.count); i >= 0; i = CollisionKernel.nextHit(hitMask, i, t.count)) {
+                    if (game.platforms.get(i).oneWay) continue;
+                    double ox = Math.min(p.x + p.width, t.x[i] + t.width[i]) - Math.max(p.x, t.x[i]);
+                    double oy = Math.min(p.y + p.height, t.y[i] + t.height[i]) - Math.max(p.y, t.y[i]);
+                    if (ox > OVERLAP_TOLERANCE && oy > OVERLAP_TOLERANCE) {
+                        return String.format("terrain-overlap: player (%.2f, %.2f %.0fx%.0f) inside platform %d (%.0f, %.0f %.0fx%.0f)",
+                                p.x, p.y, p.width, p.height, i, t.x[i], t.y[i], t.width[i], t.height[i]);
+                    }
+                    if (continuing && game.platforms.get(i).motion == PlatformMotion.STATIC &&
+                            Math.min(px + pw, p.x + p.width) > t.x[i] && Math.max(px, p.x) < t.x[i] + t.width[i]) {
+                        boolean down = py + ph <= t.y[i] + EPSILON && p.y >= t.y[i] + t.height[i] - EPSILON;
+                        boolean up = py >= t.y[i] + t.height[i] - EPSILON && p.y + p.height <= t.y[i] + EPSILON;
+                        if (down || up) {
+                            return String.format("tunnelling: player went %s through platform %d (%.0f, %.0f %.0fx%.0f) from y %.2f to %.2f",
+                                    down ? "down" : "up", i, t.x[i], t.y[i], t.width[i], t.height[i], py, p.y);
+                        }
+                    }
+                }
 
-                gc.setFill(blockColor);
-                gc.fillRect(x, y, width, height);
-                gc.setFill(Color.DARKORANGE);
-                gc.strokeRect(x, y, width, height);
+                if (game.currentLevel != level) {
+                    level = game.currentLevel;
+                    terrainCount = t.count;
+                    blockCount = game.questionBlocks.size();
+                    pipeCount = game.pipes.size();
+                    enemyCount = e.count;
+                    coinCount = game.coins.count;
+                    timer = game.gameTimer;
+                    resetEnemies(e);
+                } else {
+                    if (t.count != terrainCount || game.platforms.size() != t.count ||
+                            game.questionBlocks.size() != blockCount || game.pipes.size() != pipeCount) {
+                        return "world-size: " + t.count + " platforms, " + game.questionBlocks.size() + " blocks, " +
+                                game.pipes.size() + " pipes; the level started with " + terrainCount + ", " +
+                                blockCount + ", " + pipeCount;
+                    }
+                    if (e.count > enemyCount || game.coins.count > coinCount) {
+                        return "world-size: " + e.count + " enemies and " + game.coins.count + " coins, up from " +
+                                enemyCount + " and " + coinCount;
+                    }
+                    if (game.gameTimer > timer) {
+                        return "timer: went up from " + timer + " to " + game.gameTimer;
+                    }
+                    timer = game.gameTimer;
+
+                    // An enemy turning on two ticks in a row is stuck flipping, e.g. with no support in reach.
+                    // Shells kicked or stopped, and plants, which never walk, are not turning.
+                    if (e.count == enemyCount) {
+                        for (int i = 0; i < e.count; i++) {
+                            boolean turned = e.velX[i] != 0 && enemyVelX[i] != 0 &&
+                                    Math.signum(e.velX[i]) != Math.signum(enemyVelX[i]);
+                            if (turned && enemyTurned[i]) {
+                                return String.format("enemy-flip: enemy %d at (%.1f, %.1f) reversed on consecutive ticks",
+                                        i, e.x[i], e.y[i]);
+                            }
+                            enemyTurned[i] = turned;
+                            enemyVelX[i] = e.velX[i];
+                        }
+                    } else {
+                        resetEnemies(e);
+                    }
+                    enemyCount = e.count;
+                    coinCount = game.coins.count;
+                }
 
-                // Question mark
-                gc.setFill(Color.WHITE);
-                gc.setFont(Font.font("Arial", FontWeight.BOLD, 20));
-                gc.fillText("?", x + width/2 - 6, y + height/2 + 7);
+                lives = game.lives;
+                px = p.x;
+                py = p.y;
+                pw = p.width;
+                ph = p.height;
+                return null;
+            }
+
+            private void resetEnemies(EntityStore e) {
+                if (enemyVelX.length < e.count) {
+                    enemyVelX = new double[e.x.length];
+                    enemyTurned = new boolean[e.x.length];
+                }
+                System.arraycopy(e.velX, 0, enemyVelX, 0, e.count);
+                Arrays.fill(enemyTurned, false);
             }
         }
     }
 
-    // Pipe class
-    class Pipe extends GameObject {
-        public Pipe(double x, double y, double width, double height) {
-            super(x, y, width, height);
+    // PreparedLevel class: a level's entities and terrain index, ready to be swapped in whole
+    static final class PreparedLevel {
+        final int world;
+        final int level;
+        final LevelDefinition definition;
+        final List<Platform> platforms = new ArrayList<>();
+        final List<Pipe> pipes = new ArrayList<>();
+        final List<QuestionBlock> questionBlocks = new ArrayList<>();
+        final EntityStore enemies = new EntityStore(64);
+        final EntityStore coins = new EntityStore(64);
+        final TerrainIndex terrain = new TerrainIndex();
+
+        PreparedLevel(int world, int level, LevelDefinition definition) {
+            this.world = world;
+            this.level = level;
+            this.definition = definition;
         }
+    }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            // Pipe body
-            gc.setFill(Color.LIGHTGREEN);
-            gc.fillRect(x, y, width, height);
+    // LevelEdit class: a level file re-read by the watcher, tagged with the file it came from so an
+    // edit that arrives after the player has moved on is not applied to the wrong level
+    static final class LevelEdit {
+        final Path file;
+        final LevelDefinition definition;
 
-            // Pipe rim (top part)
-            gc.setFill(Color.GREEN);
-            gc.fillRect(x - 4, y, width + 8, 8);
+        LevelEdit(Path file, LevelDefinition definition) {
+            this.file = file;
+            this.definition = definition;
+        }
+    }
 
-            // Pipe outline
-            gc.setFill(Color.DARKGREEN);
-            gc.strokeRect(x, y, width, height);
-            gc.strokeRect(x - 4, y, width + 8, 8);
+    // LevelDefinition class: a parsed level file. Items compare by value so two definitions
+    // can be diffed for hot reload.
+    static class LevelDefinition {
+        enum Kind {
+            PLATFORM, ONE_WAY, MOVER, FALLER, PIPE, BLOCK, GOOMBA, COIN, KOOPA, PIRANHA; // saves fingerprint ordinals: append only
 
-            // Pipe details
-            gc.strokeLine(x + width/2, y + 8, x + width/2, y + height);
+            boolean isPlatform() {
+                return this == PLATFORM || this == ONE_WAY || this == MOVER || this == FALLER;
+            }
         }
-    }
 
-    // Particle base class
-    abstract class Particle {
-        double x, y, velY;
-        double lifeTime;
-        double maxLifeTime;
+        static final class Item {
+            final Kind kind;
+            final double x, y, width, height;
+            final String type; // PlatformType or PowerUpType name, empty otherwise
+            final double travelX, travelY, period; // movers only
 
-        public Particle(double x, double y, double lifeTime) {
-            this.x = x;
-            this.y = y;
-            this.lifeTime = lifeTime;
-            this.maxLifeTime = lifeTime;
-            this.velY = -2;
+            Item(Kind kind, double x, double y, double width, double height, String type) {
+                this(kind, x, y, width, height, type, 0, 0, 0);
+            }
+
+            Item(Kind kind, double x, double y, double width, double height, String type,
+                 double travelX, double travelY, double period) {
+                this.kind = kind;
+                this.x = x;
+                this.y = y;
+                this.width = width;
+                this.height = height;
+                this.type = type;
+                this.travelX = travelX;
+                this.travelY = travelY;
+                this.period = period;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Item)) return false;
+                Item other = (Item) o;
+                return kind == other.kind && x == other.x && y == other.y &&
+                        width == other.width && height == other.height && type.equals(other.type) &&
+                        travelX == other.travelX && travelY == other.travelY && period == other.period;
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(kind, x, y, width, height, type, travelX, travelY, period);
+            }
         }
 
-        public void update(double deltaTime) {
-            y += velY;
-            lifeTime -= deltaTime;
+        static final class Diff {
+            final List<Item> removed = new ArrayList<>();
+            final List<Item> added = new ArrayList<>();
         }
 
-        public boolean isDead() {
-            return lifeTime <= 0;
+        double endX = LEVEL_END_X;
+        final List<Item> items = new ArrayList<>();
+
+        // CRC of the layout, stable across runs (hashCode is not: enum hashes vary); saves record it
+        int fingerprint() {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 9 * 8);
+            buffer.putDouble(endX).flip();
+            crc.update(buffer);
+            for (Item item : items) {
+                buffer.clear();
+                buffer.putInt(item.kind.ordinal()).putDouble(item.x).putDouble(item.y);
+                buffer.putDouble(item.width).putDouble(item.height);
+                buffer.putDouble(item.travelX).putDouble(item.travelY).putDouble(item.period).flip();
+                crc.update(buffer);
+                crc.update(item.type.getBytes(StandardCharsets.UTF_8));
+            }
+            return (int) crc.getValue();
         }
 
-        public abstract void draw(GraphicsContext gc);
-    }
+        // The original hand-built level, used when no level file is found
+        static LevelDefinition builtIn() {
+            LevelDefinition def = new LevelDefinition();
+            // Ground platforms
+            def.platform(0, GAME_HEIGHT - TILE_SIZE, TILE_SIZE, TILE_SIZE, PlatformType.GROUND, 60);
+            // Simple brick platform for testing
+            def.platform(300, GAME_HEIGHT - TILE_SIZE * 3, TILE_SIZE, 16, PlatformType.BRICK, 4);
+            // One floating platform
+            def.platform(600, GAME_HEIGHT - TILE_SIZE * 4, TILE_SIZE * 3, 20, PlatformType.GROUND, 1);
+            // Single pipe at the end
+            def.items.add(new Item(Kind.PIPE, LEVEL_END_X - 100, GAME_HEIGHT - TILE_SIZE * 3, TILE_SIZE * 2, TILE_SIZE * 2, ""));
+            // Question blocks
+            def.block(350, GAME_HEIGHT - TILE_SIZE * 3 - TILE_SIZE - 2, PowerUpType.MUSHROOM);
+            def.block(500, GAME_HEIGHT - TILE_SIZE - TILE_SIZE - 10, PowerUpType.FIRE_FLOWER);
+            // Simple enemies
+            def.items.add(new Item(Kind.GOOMBA, 400, GAME_HEIGHT - TILE_SIZE - 24, 24, 24, ""));
+            def.items.add(new Item(Kind.GOOMBA, 700, GAME_HEIGHT - TILE_SIZE - 24, 24, 24, ""));
+            // Some coins for collection
+            for (double x : new double[] { 250, 280, 1300, 1330 }) {
+                def.items.add(new Item(Kind.COIN, x, GAME_HEIGHT - TILE_SIZE - 30, 16, 16, ""));
+            }
+            return def;
+        }
 
-    // ScoreParticle class
-    class ScoreParticle extends Particle {
-        String text;
+        static LevelDefinition parse(List<String> lines) {
+            LevelDefinition def = new LevelDefinition();
+            int lineNumber = 0;
+            for (String raw : lines) {
+                lineNumber++;
+                String line = raw.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split("\\s+");
+                try {
+                    switch (f[0].toLowerCase()) {
+                        case "end":
+                            def.endX = Double.parseDouble(f[1]);
+                            break;
+                        case "platform":
+                        case "oneway":
+                        case "faller":
+                            Kind kind = f[0].equalsIgnoreCase("platform") ? Kind.PLATFORM
+                                    : f[0].equalsIgnoreCase("oneway") ? Kind.ONE_WAY : Kind.FALLER;
+                            def.platform(kind, num(f[1]), num(f[2]), num(f[3]), num(f[4]),
+                                    PlatformType.valueOf(f[5].toUpperCase()), f.length > 6 ? Integer.parseInt(f[6]) : 1);
+                            break;
+                        case "mover":
+                            double period = num(f[8]);
+                            if (!(period > 0)) {
+                                throw new IllegalArgumentException("period must be positive");
+                            }
+                            def.items.add(new Item(Kind.MOVER, num(f[1]), num(f[2]), num(f[3]), num(f[4]),
+                                    PlatformType.valueOf(f[5].toUpperCase()).name(), num(f[6]), num(f[7]), period));
+                            break;
+                        case "pipe":
+                            def.items.add(new Item(Kind.PIPE, num(f[1]), num(f[2]), num(f[3]), num(f[4]), ""));
+                            break;
+                        case "block":
+                            def.block(num(f[1]), num(f[2]), PowerUpType.valueOf(f[3].toUpperCase()));
+                            break;
+                        case "goomba":
+                            def.items.add(new Item(Kind.GOOMBA, num(f[1]), num(f[2]), 24, 24, ""));
+                            break;
+                        case "koopa":
+                            def.items.add(new Item(Kind.KOOPA, num(f[1]), num(f[2]), 24, 32, ""));
+                            break;
+                        case "piranha":
+                            def.items.add(new Item(Kind.PIRANHA, num(f[1]), num(f[2]), 24, PIRANHA_HEIGHT, ""));
+                            break;
+                        case "coin":
+                            def.items.add(new Item(Kind.COIN, num(f[1]), num(f[2]), 16, 16, ""));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown item '" + f[0] + "'");
+                    }
+                } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                    throw new IllegalArgumentException("line " + lineNumber + ": " + line + " (" + e.getMessage() + ")", e);
+                }
+            }
+            return def;
+        }
 
-        public ScoreParticle(double x, double y, String text) {
-            super(x, y, 1.5);
-            this.text = text;
+        // Multiset difference, so duplicated items are matched one-for-one
+        Diff diff(LevelDefinition next) {
+            Map<Item, Integer> counts = new HashMap<>();
+            for (Item item : items) {
+                counts.merge(item, 1, Integer::sum);
+            }
+            Diff diff = new Diff();
+            for (Item item : next.items) {
+                Integer n = counts.get(item);
+                if (n == null) {
+                    diff.added.add(item);
+                } else if (n == 1) {
+                    counts.remove(item);
+                } else {
+                    counts.put(item, n - 1);
+                }
+            }
+            for (Map.Entry<Item, Integer> left : counts.entrySet()) {
+                for (int i = 0; i < left.getValue(); i++) {
+                    diff.removed.add(left.getKey());
+                }
+            }
+            return diff;
         }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            double alpha = lifeTime / maxLifeTime;
-            gc.setFont(Font.font("Arial", FontWeight.BOLD, 14));
-            gc.setFill(Color.color(1, 1, 1, alpha));
-            gc.fillText(text, x, y);
+        private void platform(double x, double y, double width, double height, PlatformType type, int count) {
+            platform(Kind.PLATFORM, x, y, width, height, type, count);
         }
-    }
 
-    // HitParticle class
-    class HitParticle extends Particle {
-        public HitParticle(double x, double y) {
-            super(x, y, 0.5);
-            this.velY = -4;
+        private void platform(Kind kind, double x, double y, double width, double height, PlatformType type, int count) {
+            for (int i = 0; i < count; i++) {
+                items.add(new Item(kind, x + i * width, y, width, height, type.name()));
+            }
         }
 
-        @Override
-        public void draw(GraphicsContext gc) {
-            double alpha = lifeTime / maxLifeTime;
-            gc.setFill(Color.color(1, 1, 0, alpha));
-            gc.fillOval(x - 2, y - 2, 4, 4);
-            gc.fillOval(x - 4, y, 4, 4);
-            gc.fillOval(x + 2, y, 4, 4);
+        private void block(double x, double y, PowerUpType type) {
+            items.add(new Item(Kind.BLOCK, x, y, TILE_SIZE, TILE_SIZE, type.name()));
+        }
+
+        private static double num(String s) {
+            return Double.parseDouble(s);
         }
     }
-}
\ No newline at end of file
+}
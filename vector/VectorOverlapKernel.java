@@ -0,0 +1,49 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// VectorOverlapKernel class: CollisionKernel.overlapMask on the Vector API. Each step compares a
+// full vector of candidates and ORs its lane mask into the 64-bit word; only the last step of a
+// word loads with a lane mask. Loaded reflectively by CollisionKernel when the incubator module
+// is present; build and launch flags are next to CollisionKernel.loadVectorBatch.
+final class VectorOverlapKernel implements MarioGameEnhanced.CollisionKernel.Batch {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int overlapMask(double bx, double by, double bw, double bh,
+                           double[] xs, double[] ys, double[] ws, double[] hs, int count, long[] mask) {
+        double right = bx + bw;
+        double bottom = by + bh;
+        int lanes = SPECIES.length(); // a power of two up to 8, so steps never straddle a word
+        int hits = 0;
+        for (int base = 0; base < count; base += 64) {
+            int end = Math.min(base + 64, count);
+            long bits = 0;
+            int i = base;
+            for (; i + lanes <= end; i += lanes) {
+                DoubleVector x = DoubleVector.fromArray(SPECIES, xs, i);
+                DoubleVector y = DoubleVector.fromArray(SPECIES, ys, i);
+                VectorMask<Double> hit = x.compare(VectorOperators.LT, right)
+                        .and(x.add(DoubleVector.fromArray(SPECIES, ws, i)).compare(VectorOperators.GT, bx))
+                        .and(y.compare(VectorOperators.LT, bottom))
+                        .and(y.add(DoubleVector.fromArray(SPECIES, hs, i)).compare(VectorOperators.GT, by));
+                bits |= hit.toLong() << (i - base);
+            }
+            if (i < end) {
+                VectorMask<Double> live = SPECIES.indexInRange(i, end);
+                DoubleVector x = DoubleVector.fromArray(SPECIES, xs, i, live);
+                DoubleVector y = DoubleVector.fromArray(SPECIES, ys, i, live);
+                VectorMask<Double> hit = live
+                        .and(x.compare(VectorOperators.LT, right))
+                        .and(x.add(DoubleVector.fromArray(SPECIES, ws, i, live)).compare(VectorOperators.GT, bx))
+                        .and(y.compare(VectorOperators.LT, bottom))
+                        .and(y.add(DoubleVector.fromArray(SPECIES, hs, i, live)).compare(VectorOperators.GT, by));
+                bits |= hit.toLong() << (i - base);
+            }
+            mask[base >>> 6] = bits;
+            hits += Long.bitCount(bits);
+        }
+        return hits;
+    }
+}